@@ -6,10 +6,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.tools.shell.utlities.ANSIProgressRenderer;
 import net.corda.tools.shell.utlities.CRaSHANSIProgressRenderer;
+import net.corda.tools.shell.utlities.MultiFlowProgressRenderer;
 import org.crsh.cli.Argument;
 import org.crsh.cli.Command;
 import org.crsh.cli.Man;
 import org.crsh.cli.Named;
+import org.crsh.cli.Option;
 import org.crsh.cli.Usage;
 import org.crsh.command.InvocationContext;
 import org.crsh.text.Color;
@@ -22,8 +24,13 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 
 import static net.corda.tools.shell.InteractiveShell.killFlowById;
+import static net.corda.tools.shell.InteractiveShell.runFlowBatch;
 import static net.corda.tools.shell.InteractiveShell.runFlowByNameFragment;
+import static net.corda.tools.shell.InteractiveShell.runFlowInBackground;
+import static net.corda.tools.shell.InteractiveShell.runFlowLoad;
+import static net.corda.tools.shell.InteractiveShell.runFlowMonitor;
 import static net.corda.tools.shell.InteractiveShell.runStateMachinesView;
+import static net.corda.tools.shell.InteractiveShell.runUntrackedFlowByNameFragment;
 
 @Man(
     "Allows you to start and kill flows, list the ones available and to watch flows currently running on the node.\n\n" +
@@ -44,11 +51,77 @@ public class FlowShellCommand extends CordaRpcOpsShellCommand {
         "\t\t    command with either a full class name, or a substring of the class name that's unambiguous. The parameters to the\n" +
         "\t\t    flow constructors (the right one is picked automatically) are then specified using the same syntax as for the run command.\n")
     public void start(
+        @Usage("Start the flow without following its progress, printing its id as soon as the node accepts it") @Option(names = {"n", "no-track"}) Boolean noTrack,
+        @Usage("With --no-track, wait for the flow's result (Ctrl-C stops waiting but leaves the flow running)") @Option(names = {"w", "wait"}) Boolean waitForResult,
+        @Usage("Start the flow in the background and return straight away, use 'flow monitor' to follow it") @Option(names = {"b", "background"}) Boolean background,
+        @Usage("Append the outcome of the flow to this file as a line of JSON") @Option(names = {"r", "results"}) String results,
         @Usage("The class name of the flow to run, or an unambiguous substring") @Argument String name,
         @Usage("The data to pass as input") @Argument(unquote = false) List<String> input
     ) {
         logger.info("Executing command \"flow start {} {}\",", name, (input != null) ? String.join(" ", input) : "<no arguments>");
-        startFlow(name, input, out, ops(), ansiProgressRenderer(), objectMapper(null));
+        startFlow(name, input, out, ops(), ansiProgressRenderer(), objectMapper(null), Boolean.TRUE.equals(noTrack), Boolean.TRUE.equals(waitForResult),
+            Boolean.TRUE.equals(background) ? backgroundFlows() : null, results);
+    }
+
+    @Command
+    @Usage("Follow the progress of the flows started with 'flow start --background', one line per flow.")
+    public void monitor(
+        @Usage("Show the full progress of the flows whose id starts with this value") @Option(names = {"e", "expand"}) List<String> expand,
+        @Usage("Show the full progress of every flow") @Option(names = {"a", "expand-all"}) Boolean expandAll
+    ) {
+        logger.info("Executing command \"flow monitor\".");
+        runFlowMonitor(out, backgroundFlows(), expand, Boolean.TRUE.equals(expandAll));
+    }
+
+    @Command
+    @Named("start-batch")
+    @Usage("Start a flow once for every line of an argument file, keeping a number of flows in flight at once.\n\n" +
+        "\t\t    Each line of the file holds the flow parameters in the same syntax as for 'flow start', or as a JSON object.\n" +
+        "\t\t    Finished lines are recorded in a journal file, so an interrupted batch resumes where it stopped when run again.\n" +
+        "\t\t    Lines that failed are skipped when resuming, unless --retry-failed is given.\n" +
+        "\t\t    With --template, each line is a row of tab or comma separated values instead, which the template parameters\n" +
+        "\t\t    refer to as ${column:N}. The template may also use ${i} for the line number, ${uuid} and ${random:MIN:MAX}.\n" +
+        "\t\t    With --client-ids, each line is started with its own client id, so that a batch resumed after the shell was\n" +
+        "\t\t    stopped or lost its connection reattaches to the flows already started rather than starting them again.\n")
+    public void startBatch(
+        @Usage("The number of flows to keep in flight, 16 by default") @Option(names = {"w", "window"}) Integer window,
+        @Usage("The journal file, by default the argument file name with a .journal suffix") @Option(names = {"j", "journal"}) String journal,
+        @Usage("The flow parameters, with placeholders for the values taken from each line") @Option(names = {"t", "template"}) String template,
+        @Usage("Start the flows with client ids, so that no line is started twice") @Option(names = {"c", "client-ids"}) Boolean clientIds,
+        @Usage("Try the lines that failed in an earlier run again") @Option(names = {"retry-failed"}) Boolean retryFailed,
+        @Usage("Append the outcome of every flow to this file as a line of JSON") @Option(names = {"r", "results"}) String results,
+        @Usage("The class name of the flow to run, or an unambiguous substring") @Argument String name,
+        @Usage("The file holding the flow parameters, one line per flow") @Argument String argumentsFile
+    ) {
+        logger.info("Executing command \"flow start-batch {} {}\",", name, argumentsFile);
+        if (name == null || argumentsFile == null) {
+            out.println("You must pass a flow name and an argument file. Example: \"flow start-batch Yo yo-targets.txt\"", Decoration.bold, Color.red);
+            return;
+        }
+        runFlowBatch(name, argumentsFile, template, journal, window, Boolean.TRUE.equals(clientIds), Boolean.TRUE.equals(retryFailed),
+            results, out, ops(), objectMapper(null));
+    }
+
+    @Command
+    @Usage("Start a flow repeatedly at a fixed rate and report the latency percentiles and throughput.\n\n" +
+        "\t\t    Flows are started on schedule whether or not earlier ones have finished, and latencies are measured from the\n" +
+        "\t\t    scheduled start time. The parameters use the same syntax as for 'flow start', and are parsed once. They may\n" +
+        "\t\t    contain the placeholders ${i} for the sequence number of each flow, ${uuid} and ${random:MIN:MAX}.\n")
+    public void load(
+        @Usage("The number of flows to start per second") @Option(names = {"r", "rate"}) Double rate,
+        @Usage("How long to generate load for in seconds, 60 by default") @Option(names = {"d", "duration"}) Long duration,
+        @Usage("The number of seconds between reports, 10 by default") @Option(names = {"i", "interval"}) Long interval,
+        @Usage("The number of threads starting flows, 32 by default") @Option(names = {"t", "threads"}) Integer threads,
+        @Usage("The class name of the flow to run, or an unambiguous substring") @Argument String name,
+        @Usage("The data to pass as input") @Argument(unquote = false) List<String> input
+    ) {
+        logger.info("Executing command \"flow load {} {}\",", name, (input != null) ? String.join(" ", input) : "<no arguments>");
+        if (name == null || rate == null) {
+            out.println("You must pass a flow name and a rate. Example: \"flow load --rate 50 Yo target: Some other company\"", Decoration.bold, Color.red);
+            return;
+        }
+        String inp = input == null ? "" : String.join(" ", input).trim();
+        runFlowLoad(name, inp, rate, duration, interval, threads, out, ops(), objectMapper(null));
     }
 
     // TODO Limit number of flows shown option?
@@ -66,19 +139,55 @@ public class FlowShellCommand extends CordaRpcOpsShellCommand {
         CordaRPCOps rpcOps,
         ANSIProgressRenderer ansiProgressRenderer,
         ObjectMapper om
+    ) {
+        startFlow(name, input, out, rpcOps, ansiProgressRenderer, om, false, false, null, null);
+    }
+
+    static void startFlow(
+        String name,
+        List<String> input,
+        RenderPrintWriter out,
+        CordaRPCOps rpcOps,
+        ANSIProgressRenderer ansiProgressRenderer,
+        ObjectMapper om,
+        boolean noTrack,
+        boolean waitForResult,
+        MultiFlowProgressRenderer backgroundFlows,
+        String resultsFile
     ) {
         if (name == null) {
             out.println("You must pass a name for the flow. Example: \"start Yo target: Some other company\"", Decoration.bold, Color.red);
             return;
         }
         String inp = input == null ? "" : String.join(" ", input).trim();
+        if (noTrack && backgroundFlows != null) {
+            out.println("A flow started in the background is always tracked, --no-track and --background can't be combined.", Decoration.bold, Color.red);
+            return;
+        }
+        if (waitForResult && backgroundFlows != null) {
+            out.println("A flow started in the background returns straight away, --wait and --background can't be combined.", Decoration.bold, Color.red);
+            return;
+        }
+        if (waitForResult && !noTrack) {
+            out.println("A tracked flow is always waited for, --wait only applies with --no-track.", Decoration.bold, Color.red);
+            return;
+        }
+        if (noTrack) {
+            runUntrackedFlowByNameFragment(name, inp, out, rpcOps, waitForResult, om, resultsFile);
+            return;
+        }
+        if (backgroundFlows != null) {
+            runFlowInBackground(name, inp, out, rpcOps, backgroundFlows, om, resultsFile);
+            return;
+        }
         runFlowByNameFragment(
             name,
             inp,
             out,
             rpcOps,
             ansiProgressRenderer != null ? ansiProgressRenderer : new CRaSHANSIProgressRenderer(out),
-            om
+            om,
+            resultsFile
         );
     }
 
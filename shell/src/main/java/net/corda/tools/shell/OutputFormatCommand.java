@@ -28,17 +28,22 @@ public class OutputFormatCommand extends CordaRpcOpsShellCommand {
         this.out = printWriter;
     }
 
-    private static final BiMap<String, OutputFormat> OUTPUT_FORMAT_MAPPING = ImmutableBiMap.of(
-        "json", OutputFormat.JSON,
-        "yaml", OutputFormat.YAML
-    );
+    private static final BiMap<String, OutputFormat> OUTPUT_FORMAT_MAPPING = ImmutableBiMap.<String, OutputFormat>builder()
+        .put("json", OutputFormat.JSON)
+        .put("yaml", OutputFormat.YAML)
+        .put("ndjson", OutputFormat.NDJSON)
+        .put("csv", OutputFormat.CSV)
+        .put("tsv", OutputFormat.TSV)
+        .put("cbor", OutputFormat.CBOR)
+        .put("smile", OutputFormat.SMILE)
+        .build();
 
     @Command
     @Man("Sets the output format of the commands.")
     @Usage("sets the output format of the commands.")
     public void set(
         InvocationContext<Map> context,
-        @Usage("The format of the commands output. Supported values: json, yaml.") @Argument String format
+        @Usage("The format of the commands output. Supported values: json, yaml, ndjson, csv, tsv, cbor, smile (binary, for 'run --output-file' only).") @Argument String format
     ) {
         OutputFormat outputFormat = parseFormat(format);
 
@@ -55,6 +60,50 @@ public class OutputFormatCommand extends CordaRpcOpsShellCommand {
         out.println(format);
     }
 
+    @Command
+    @Man("Turns the accelerated serialization of the commands' output on or off. When on, the properties of the results\n" +
+        "are read through generated bytecode rather than through reflection, which is quicker for large results.\n" +
+        "Properties that can't be read that way are still read through reflection.")
+    @Usage("turns the accelerated serialization of the commands' output on or off.")
+    public void accelerate(
+        InvocationContext<Map> context,
+        @Usage("Either on or off.") @Argument String mode
+    ) {
+        InteractiveShell.setAcceleratedOutput(parseMode(mode));
+    }
+
+    @Command
+    @Man("Turns the parallel serialization of large list results on or off. When on, the elements of lists with more\n" +
+        "than a thousand or so elements are serialized on all cores, and printed in their original order, exactly as\n" +
+        "they would be otherwise.")
+    @Usage("turns the parallel serialization of large list results on or off.")
+    public void parallel(
+        InvocationContext<Map> context,
+        @Usage("Either on or off.") @Argument String mode
+    ) {
+        InteractiveShell.setParallelOutput(parseMode(mode));
+    }
+
+    @Command
+    @Man("Prints a file written by 'run --output-file' in one of the binary formats (cbor or smile), using the current output format.")
+    @Usage("prints a file written in the cbor or smile format.")
+    public void decode(
+        InvocationContext<Map> context,
+        @Usage("The file to print") @Argument String file
+    ) {
+        InteractiveShell.runDecodeOutputFile(file, out);
+    }
+
+    private boolean parseMode(String mode) {
+        if ("on".equals(mode)) {
+            return true;
+        } else if ("off".equals(mode)) {
+            return false;
+        }
+
+        throw new ScriptException("The provided mode is not supported, it can only be on or off: " + mode);
+    }
+
     private OutputFormat parseFormat(String format) {
         if (!OUTPUT_FORMAT_MAPPING.containsKey(format)) {
             throw new ScriptException("The provided format is not supported: " + format);
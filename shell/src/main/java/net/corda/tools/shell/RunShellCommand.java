@@ -7,6 +7,7 @@ import org.crsh.cli.Argument;
 import org.crsh.cli.Command;
 import org.crsh.cli.Man;
 import org.crsh.cli.Named;
+import org.crsh.cli.Option;
 import org.crsh.cli.Usage;
 import org.crsh.command.InvocationContext;
 import org.jetbrains.annotations.NotNull;
@@ -39,6 +40,11 @@ public class RunShellCommand extends CordaRpcOpsShellCommand {
     @Usage("runs a method from the CordaRPCOps interface on the node.")
     public Object main(
         InvocationContext<Map> context,
+        @Usage("Write the result to this new file instead of the terminal, in the current output format") @Option(names = {"o", "output-file"}) String outputFile,
+        @Usage("With the csv and tsv output formats, the comma separated dotted paths of the columns to print, instead of all of them") @Option(names = {"c", "columns"}) String columns,
+        @Usage("Only print these comma separated dotted paths of the result, e.g. states.ref,states.state.data.amount") @Option(names = {"f", "fields"}) String fields,
+        @Usage("Show the result a screen at a time: Enter for the next page, b to go back, g to go to the top, /text to search, n to search again and q to quit") @Option(names = {"p", "pager"}) Boolean pager,
+        @Usage("Ask the node even if the result of this method has been cached by the shell") @Option(names = {"fresh"}) Boolean fresh,
         @Usage("The command to run") @Argument(unquote = false) List<String> command
     ) {
         logger.info("Executing command \"run {}\",", (command != null) ? String.join(" ", command) : "<no arguments>");
@@ -48,13 +54,13 @@ public class RunShellCommand extends CordaRpcOpsShellCommand {
             return null;
         }
 
-        return InteractiveShell.runRPCFromString(command, out, context, ops(), objectMapper(InteractiveShell.getCordappsClassloader()));
+        ClassLoader classLoader = InteractiveShell.getCordappsClassloader();
+        return InteractiveShell.runRPCFromString(command, out, context, ops(), objectMapper(classLoader), outputFile, columns, fields, pager != null && pager,
+            fresh != null && fresh, rpcParser(classLoader));
     }
 
     private void emitHelp(InvocationContext<Map> context) {
-        StringToMethodCallParser<CordaRPCOps> cordaRpcOpsParser =
-            new StringToMethodCallParser<>(
-                CordaRPCOps.class, objectMapper(InteractiveShell.getCordappsClassloader()));
+        StringToMethodCallParser<CordaRPCOps> cordaRpcOpsParser = rpcParser(InteractiveShell.getCordappsClassloader());
 
         // Sends data down the pipeline about what commands are available. CRaSH will render it nicely.
         // Each element we emit is a map of column -> content.
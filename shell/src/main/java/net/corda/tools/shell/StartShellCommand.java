@@ -8,6 +8,7 @@ import org.crsh.cli.Argument;
 import org.crsh.cli.Command;
 import org.crsh.cli.Man;
 import org.crsh.cli.Named;
+import org.crsh.cli.Option;
 import org.crsh.cli.Usage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,10 @@ public class StartShellCommand extends CordaRpcOpsShellCommand {
     @Command
     @Man("An alias for 'flow start'. Example: \"start Yo target: Some other company\"")
     public void main(
+        @Usage("Start the flow without following its progress, printing its id as soon as the node accepts it") @Option(names = {"n", "no-track"}) Boolean noTrack,
+        @Usage("With --no-track, wait for the flow's result (Ctrl-C stops waiting but leaves the flow running)") @Option(names = {"w", "wait"}) Boolean waitForResult,
+        @Usage("Start the flow in the background and return straight away, use 'flow monitor' to follow it") @Option(names = {"b", "background"}) Boolean background,
+        @Usage("Append the outcome of the flow to this file as a line of JSON") @Option(names = {"r", "results"}) String results,
         @Usage("The class name of the flow to run, or an unambiguous substring") @Argument String name,
         @Usage("The data to pass as input") @Argument(unquote = false) List<String> input
     ) {
@@ -35,7 +40,11 @@ public class StartShellCommand extends CordaRpcOpsShellCommand {
             out,
             ops(),
             ansiProgressRenderer != null ? ansiProgressRenderer : new CRaSHANSIProgressRenderer(out),
-            objectMapper(null)
+            objectMapper(null),
+            Boolean.TRUE.equals(noTrack),
+            Boolean.TRUE.equals(waitForResult),
+            Boolean.TRUE.equals(background) ? backgroundFlows() : null,
+            results
         );
     }
 }
\ No newline at end of file
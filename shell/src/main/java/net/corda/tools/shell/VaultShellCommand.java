@@ -0,0 +1,69 @@
+package net.corda.tools.shell;
+
+import org.crsh.cli.Argument;
+import org.crsh.cli.Command;
+import org.crsh.cli.Man;
+import org.crsh.cli.Named;
+import org.crsh.cli.Option;
+import org.crsh.cli.Required;
+import org.crsh.cli.Usage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static net.corda.tools.shell.InteractiveShell.runVaultExport;
+import static net.corda.tools.shell.InteractiveShell.runVaultQuery;
+
+@Named("vault")
+public class VaultShellCommand extends CordaRpcOpsShellCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(VaultShellCommand.class);
+
+    @Command
+    @Man(
+        "Prints all the states matching the query criteria, requesting them from the node a page at a time and printing\n" +
+            "each page as it arrives, so that however many there are, the shell only holds one page of them.\n\n" +
+
+            "The criteria are the properties of VaultQueryCriteria, in the same syntax as the parameters of 'run', e.g.\n" +
+            "vault query --type net.corda.finance.contracts.asset.Cash$State relevancyStatus: RELEVANT"
+    )
+    @Usage("prints all the states matching the query criteria, a page at a time.")
+    public void query(
+        @Usage("The fully qualified class name of the states, ContractState if not given") @Option(names = {"t", "type"}) String type,
+        @Usage("The status of the states: UNCONSUMED (the default), CONSUMED or ALL") @Option(names = {"s", "status"}) String status,
+        @Usage("How many states to request from the node at a time, 200 if not given") @Option(names = {"p", "page-size"}) Integer pageSize,
+        @Usage("How many pages to request ahead while a page is printed, 2 if not given and 0 to request them one at a time") @Option(names = {"prefetch"}) Integer prefetch,
+        @Usage("Write the states to this new file instead of the terminal, in the current output format") @Option(names = {"o", "output-file"}) String outputFile,
+        @Usage("With the csv and tsv output formats, the comma separated dotted paths of the columns to print, instead of all of them") @Option(names = {"c", "columns"}) String columns,
+        @Usage("Only print these comma separated dotted paths of each state, e.g. ref,state.data.amount") @Option(names = {"f", "fields"}) String fields,
+        @Usage("The query criteria") @Argument(unquote = false) List<String> criteria
+    ) {
+        String criteriaText = (criteria != null) ? String.join(" ", criteria) : "";
+        logger.info("Executing command \"vault query {}\",", criteriaText);
+        runVaultQuery(type, status, criteriaText, pageSize, prefetch, outputFile, columns, fields, out, ops(), objectMapper(InteractiveShell.getCordappsClassloader()));
+    }
+
+    @Command
+    @Man(
+        "Writes all the states matching the query criteria to a local file as gzip compressed newline delimited JSON, one\n" +
+            "state per line, whatever the output format. A manifest with the number of states, the query and the SHA-256\n" +
+            "checksum of the file is written next to it, to <file>.manifest.json.\n\n" +
+
+            "The criteria are the same as for 'vault query'."
+    )
+    @Usage("writes all the states matching the query criteria to a compressed file.")
+    public void export(
+        @Usage("The new file to write the states to, which must not exist yet") @Required @Option(names = {"o", "output-file"}) String outputFile,
+        @Usage("The fully qualified class name of the states, ContractState if not given") @Option(names = {"t", "type"}) String type,
+        @Usage("The status of the states: UNCONSUMED (the default), CONSUMED or ALL") @Option(names = {"s", "status"}) String status,
+        @Usage("How many states to request from the node at a time, 200 if not given") @Option(names = {"p", "page-size"}) Integer pageSize,
+        @Usage("How many pages to request ahead while a page is written, 2 if not given and 0 to request them one at a time") @Option(names = {"prefetch"}) Integer prefetch,
+        @Usage("Only export these comma separated dotted paths of each state, e.g. ref,state.data.amount") @Option(names = {"f", "fields"}) String fields,
+        @Usage("The query criteria") @Argument(unquote = false) List<String> criteria
+    ) {
+        String criteriaText = (criteria != null) ? String.join(" ", criteria) : "";
+        logger.info("Executing command \"vault export {} {}\",", outputFile, criteriaText);
+        runVaultExport(type, status, criteriaText, pageSize, prefetch, outputFile, fields, out, ops(), objectMapper(InteractiveShell.getCordappsClassloader()));
+    }
+}
@@ -0,0 +1,146 @@
+package net.corda.tools.shell
+
+import net.corda.core.internal.utilities.InvocationHandlerTemplate
+import net.corda.core.messaging.CordaRPCOps
+import org.slf4j.LoggerFactory
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Answers the read-only [CordaRPCOps] calls whose results rarely change from memory, for as long as [ttlMillis] gives for
+ * each of them, rather than going over RPC every time. Only calls without parameters are cached.
+ *
+ * The results that depend on the network map are dropped as soon as the node reports a change to it, through a
+ * [CordaRPCOps.networkMapFeed] subscribed to the first time one of them is cached or the [networkMapIndex] of the
+ * connection is used. The same feed keeps the index current. All the results are dropped once the
+ * connection to the node has been re-established, see [connectionReestablished], and calls made within [fresh] always go
+ * to the node.
+ */
+internal class CachingRPCOps private constructor(
+    override val delegate: CordaRPCOps,
+    private val ttlMillis: Map<String, Long>
+) : InvocationHandlerTemplate {
+    companion object {
+        private val log = LoggerFactory.getLogger(CachingRPCOps::class.java)
+
+        /**
+         * Not registeredFlows, which [FlowNameIndex] keeps already, and which must reach the node when a flow name is
+         * not found, as its CorDapp may just have been installed.
+         */
+        val DEFAULT_TTL_MILLIS = mapOf(
+            "nodeInfo" to 60_000L,
+            "notaryIdentities" to 60_000L,
+            "networkMapSnapshot" to 30_000L,
+            // Only spares the round trip to scripts asking for it several times a second.
+            "currentNodeTime" to 1_000L
+        )
+
+        private val NETWORK_MAP_METHODS = setOf("nodeInfo", "notaryIdentities", "networkMapSnapshot")
+
+        private val generation = AtomicInteger()
+
+        private val bypass = ThreadLocal<Boolean>()
+
+        /** [rpcOps], with the calls made through it cached. */
+        fun wrap(rpcOps: CordaRPCOps, ttlMillis: Map<String, Long> = DEFAULT_TTL_MILLIS): CordaRPCOps {
+            return Proxy.newProxyInstance(
+                CordaRPCOps::class.java.classLoader,
+                arrayOf(CordaRPCOps::class.java),
+                CachingRPCOps(rpcOps, ttlMillis)
+            ) as CordaRPCOps
+        }
+
+        /** The index of the network map [rpcOps] follows, if its calls are cached. */
+        fun networkMapIndexOf(rpcOps: CordaRPCOps): NetworkMapIndex? {
+            if (!Proxy.isProxyClass(rpcOps.javaClass)) return null
+            return (Proxy.getInvocationHandler(rpcOps) as? CachingRPCOps)?.networkMapIndex
+        }
+
+        /** Runs [block], making the calls it makes on this thread go to the node, and caching what they return. */
+        fun <T> fresh(block: () -> T): T {
+            val previous = bypass.get()
+            bypass.set(true)
+            try {
+                return block()
+            } finally {
+                bypass.set(previous)
+            }
+        }
+
+        /** Drops what every connection has cached, to be called when a connection to the node has been re-established. */
+        fun connectionReestablished() {
+            generation.incrementAndGet()
+        }
+    }
+
+    private class Entry(val value: Any?, val expiresAt: Long, val generation: Int)
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val followingNetworkMap = AtomicBoolean(false)
+
+    /** The parties in the network map, for resolving the parties named in arguments, see [NetworkMapIndex]. */
+    val networkMapIndex = NetworkMapIndex { followNetworkMap() }
+
+    override fun invoke(proxy: Any, method: Method, arguments: Array<out Any?>?): Any? {
+        val ttl = ttlMillis[method.name]
+        if (ttl == null || (arguments != null && arguments.isNotEmpty())) {
+            return super.invoke(proxy, method, arguments)
+        }
+        val fresh = bypass.get() == true
+        if (!fresh) {
+            cached(method.name)?.let { return it.value }
+        }
+        if (method.name in NETWORK_MAP_METHODS) {
+            followNetworkMap()
+            // Following the network map caches its snapshot.
+            if (!fresh) {
+                cached(method.name)?.let { return it.value }
+            }
+        }
+        val currentGeneration = generation.get()
+        val value = super.invoke(proxy, method, arguments)
+        store(method.name, value, ttl, currentGeneration)
+        return value
+    }
+
+    private fun cached(methodName: String): Entry? {
+        val entry = entries[methodName] ?: return null
+        return entry.takeIf { it.generation == generation.get() && System.nanoTime() - it.expiresAt < 0 }
+    }
+
+    private fun store(methodName: String, value: Any?, ttl: Long, generation: Int) {
+        entries[methodName] = Entry(value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl), generation)
+    }
+
+    /** Drops the results that depend on the network map whenever it changes, and keeps the [networkMapIndex] current. */
+    private fun followNetworkMap() {
+        if (!followingNetworkMap.compareAndSet(false, true)) return
+        try {
+            val currentGeneration = generation.get()
+            val feed = delegate.networkMapFeed()
+            ttlMillis["networkMapSnapshot"]?.let { store("networkMapSnapshot", feed.snapshot, it, currentGeneration) }
+            networkMapIndex.reset(feed.snapshot)
+            val ended = {
+                // The feed ends with the connection, follow it again once the node is back.
+                entries.clear()
+                networkMapIndex.clear()
+                followingNetworkMap.set(false)
+            }
+            feed.updates.subscribe({
+                NETWORK_MAP_METHODS.forEach { entries.remove(it) }
+                networkMapIndex.update(it)
+            }, {
+                ended()
+            }, {
+                ended()
+            })
+        } catch (e: Exception) {
+            // Most likely the user may not follow the network map, the time to live is all there is then.
+            log.debug("Cannot follow the network map, the cached results will only expire: ${e.message}")
+        }
+    }
+}
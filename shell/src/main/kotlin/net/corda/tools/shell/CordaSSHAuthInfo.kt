@@ -6,8 +6,10 @@ import com.github.benmanes.caffeine.cache.RemovalListener
 import com.google.common.util.concurrent.MoreExecutors
 import net.corda.client.rpc.RPCConnection
 import net.corda.core.internal.utilities.InvocationHandlerTemplate
+import net.corda.core.messaging.CordaRPCOps
 import net.corda.core.messaging.RPCOps
 import net.corda.tools.shell.utlities.ANSIProgressRenderer
+import net.corda.tools.shell.utlities.MultiFlowProgressRenderer
 import java.lang.reflect.Proxy
 
 internal class CordaSSHAuthInfo(
@@ -17,6 +19,12 @@ internal class CordaSSHAuthInfo(
 ) : SshAuthInfo {
     override fun isSuccessful(): Boolean = true
 
+    /** Flows started in the background from this session, see 'flow start --background' and 'flow monitor'. */
+    val backgroundFlows by lazy { MultiFlowProgressRenderer() }
+
+    /** The input mappers of this session, which look parties up over its connection. */
+    val inputMappers = ObjectMapperCache.SessionMappers()
+
     /**
      * It is necessary to have a cache to prevent creation of too many proxies for the same class. Proxy ensures that RPC connections gracefully
      * closed when cache entry is eliminated
@@ -33,6 +41,7 @@ internal class CordaSSHAuthInfo(
     }
 
     fun cleanUp() {
+        inputMappers.clear()
         proxiesCache.asMap().forEach {
             proxiesCache.invalidate(it.key)
             it.value.second.forceClose()
@@ -47,6 +56,11 @@ internal class CordaSSHAuthInfo(
 
     private fun <T : RPCOps> proxyRPCOps(instance: T, rpcOpsClass: Class<out T>): T {
         require(rpcOpsClass.isInterface) { "$rpcOpsClass must be an interface" }
+        if (rpcOpsClass == CordaRPCOps::class.java) {
+            // The read-only calls the commands and scripts make over and over are answered from memory.
+            @Suppress("UNCHECKED_CAST")
+            return CachingRPCOps.wrap(instance as CordaRPCOps) as T
+        }
         @Suppress("UNCHECKED_CAST")
         return Proxy.newProxyInstance(rpcOpsClass.classLoader, arrayOf(rpcOpsClass), object : InvocationHandlerTemplate {
             override val delegate = instance
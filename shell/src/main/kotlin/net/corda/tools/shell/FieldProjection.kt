@@ -0,0 +1,73 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.introspect.Annotated
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass
+import com.fasterxml.jackson.databind.introspect.AnnotationIntrospectorPair
+import com.fasterxml.jackson.databind.introspect.NopAnnotationIntrospector
+import com.fasterxml.jackson.databind.ser.PropertyWriter
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider
+
+/**
+ * Limits the serialization of results to the properties at the given dotted [paths] (e.g. `state.data.amount`), their
+ * ancestors, and everything below them. Array indices aren't part of the paths, so `states.ref` picks the `ref` of every
+ * element of `states`.
+ *
+ * The properties that aren't wanted are skipped as the result is serialized, so their subtrees are never visited. Only
+ * mappers that have gone through [install] consult the projection, see [filters].
+ */
+internal class FieldProjection(paths: Collection<String>) : SimpleBeanPropertyFilter() {
+    companion object {
+        private const val FILTER_ID = "shellFieldProjection"
+
+        /** Parses a comma separated list of dotted paths. */
+        fun parsePaths(text: String): List<String> = text.split(',').map { it.trim() }.filter { it.isNotEmpty() }
+
+        /** Makes every bean [mapper] serializes go through the projection handed to the writer by [filters]. */
+        fun install(mapper: ObjectMapper): ObjectMapper {
+            return mapper.setAnnotationIntrospector(AnnotationIntrospectorPair(ProjectionIntrospector, mapper.serializationConfig.annotationIntrospector))
+        }
+
+        fun filters(paths: Collection<String>) = SimpleFilterProvider().addFilter(FILTER_ID, FieldProjection(paths))
+
+        /** The projection [writer] applies, if any. */
+        fun of(writer: ObjectWriter): FieldProjection? {
+            return (writer.config.filterProvider as? SimpleFilterProvider)?.findPropertyFilter(FILTER_ID, null) as? FieldProjection
+        }
+    }
+
+    private object ProjectionIntrospector : NopAnnotationIntrospector() {
+        override fun findFilterId(a: Annotated): Any? = if (a is AnnotatedClass) FILTER_ID else null
+    }
+
+    private val paths = paths.toSet()
+
+    override fun serializeAsField(pojo: Any, gen: JsonGenerator, provider: SerializerProvider, writer: PropertyWriter) {
+        if (isIncluded(pathOf(gen, writer.name))) {
+            writer.serializeAsField(pojo, gen, provider)
+        } else if (!gen.canOmitFields()) {
+            writer.serializeAsOmittedField(pojo, gen, provider)
+        }
+    }
+
+    internal fun isIncluded(path: String): Boolean {
+        return paths.any { it == path || it.startsWith("$path.") || path.startsWith("$it.") }
+    }
+
+    /** The dotted path of the property [name] of the object being written, made of the names of its enclosing fields. */
+    private fun pathOf(gen: JsonGenerator, name: String): String {
+        val names = mutableListOf(name)
+        var context = gen.outputContext?.parent
+        while (context != null) {
+            if (context.inObject() && context.currentName != null) {
+                names += context.currentName
+            }
+            context = context.parent
+        }
+        return names.asReversed().joinToString(".")
+    }
+}
@@ -0,0 +1,229 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.JavaType
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.TextNode
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import net.corda.core.flows.FlowLogic
+import java.io.InputStream
+import java.lang.reflect.Type
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Flow arguments in the 'flow start' syntax, parsed and matched against the constructors of [flowClass] once, and then
+ * turned into constructor arguments any number of times.
+ *
+ * Parameters that don't contain a placeholder are deserialized when the template is parsed, party lookups included, and
+ * the same values are handed out every time. Only the parameters that do contain one are deserialized again, from their
+ * already parsed tree with the placeholders filled in. The supported placeholders are:
+ *
+ * - `${i}`: the sequence number of the flow being started.
+ * - `${uuid}`: a random UUID.
+ * - `${random:MIN:MAX}`: a random integer between MIN and MAX inclusive, e.g. `amount: ${random:1:500} USD`.
+ * - `${column:N}`: column N, counting from 1, of the current row of an input file.
+ */
+internal class FlowArgumentTemplate private constructor(
+    val flowClass: Class<out FlowLogic<*>>,
+    private val parameters: List<Parameter>,
+    private val placeholders: List<Placeholder>,
+    private val argTypes: String,
+    private val om: ObjectMapper
+) {
+    companion object {
+        private val PLACEHOLDER = Regex("""\$\{([^}]*)}""")
+        private const val TOKEN_PREFIX = "__shell_placeholder_"
+        private val TOKEN = Regex("${TOKEN_PREFIX}(\\d+)__")
+        private const val CACHED_ARGUMENTS_PER_FLOW = 256L
+
+        /**
+         * Recently parsed arguments, kept with each flow class. They only refer to the class itself and to parsed trees,
+         * so they're collected together with the class.
+         */
+        private val cache = object : ClassValue<Cache<String, MatchedArguments>>() {
+            override fun computeValue(type: Class<*>): Cache<String, MatchedArguments> {
+                return Caffeine.newBuilder().maximumSize(CACHED_ARGUMENTS_PER_FLOW).build()
+            }
+        }
+
+        /**
+         * Parses [text] as the arguments of one of the constructors of [flowClass]. Placeholders are only recognised if
+         * [placeholders] is set, otherwise they are passed on as they are.
+         *
+         * @throws InteractiveShell.NoApplicableConstructor if no constructor matches, or the arguments can't be
+         * deserialized into its parameter types.
+         * @throws IllegalArgumentException if a placeholder isn't recognised.
+         */
+        @Throws(InteractiveShell.NoApplicableConstructor::class)
+        fun parse(text: String, flowClass: Class<out FlowLogic<*>>, om: ObjectMapper, placeholders: Boolean = true): FlowArgumentTemplate {
+            val found = ArrayList<Placeholder>()
+            val tokenized = if (placeholders) {
+                // Swap the placeholders for plain tokens first, as the braces would otherwise be taken for YAML syntax.
+                PLACEHOLDER.replace(text) {
+                    found += Placeholder.parse(it.groupValues[1])
+                    "$TOKEN_PREFIX${found.size - 1}__"
+                }
+            } else {
+                text
+            }
+            val matched = match(om.readTree("{ $tokenized }"), flowClass, om)
+            val parameters = try {
+                matched.nameTypeList.map { (name, type) ->
+                    val node = matched.tree[name]
+                    val javaType = om.typeFactory.constructType(type)
+                    // Streams are opened afresh for every flow, as they can only be read once.
+                    if (containsPlaceholder(node) || InputStream::class.java.isAssignableFrom(javaType.rawClass)) {
+                        Parameter.Dynamic(name, node, javaType)
+                    } else {
+                        Parameter.Static(om.readValue<Any>(node.traverse(om), javaType))
+                    }
+                }
+            } catch (e: Exception) {
+                throw InteractiveShell.NoApplicableConstructor(listOf("${matched.argTypes}: ${e.message}"))
+            }
+            return FlowArgumentTemplate(flowClass, parameters, found, matched.argTypes, om)
+        }
+
+        /**
+         * Deserializes [text], which has no placeholders, into the arguments of one of the constructors of [flowClass].
+         * The arguments are parsed and matched against the constructors only if the same text hasn't been seen for
+         * [flowClass] recently, but they are deserialized with [om] every time, so that parties are looked up afresh and
+         * no two flows share argument objects. This is what makes starting the same flow over and over cheap.
+         *
+         * @throws InteractiveShell.NoApplicableConstructor if no constructor matches, or the arguments can't be
+         * deserialized into its parameter types.
+         */
+        @Throws(InteractiveShell.NoApplicableConstructor::class)
+        fun cachedArguments(text: String, flowClass: Class<out FlowLogic<*>>, om: ObjectMapper): Array<Any?> {
+            val recent = cache.get(flowClass)
+            val matched = recent.getIfPresent(text) ?: match(om.readTree("{ $text }"), flowClass, om).also { recent.put(text, it) }
+            return try {
+                matched.nameTypeList.map { (name, type) ->
+                    om.readValue<Any>(matched.tree[name].traverse(om), om.typeFactory.constructType(type))
+                }.toTypedArray()
+            } catch (e: Exception) {
+                throw InteractiveShell.NoApplicableConstructor(listOf("${matched.argTypes}: ${e.message}"))
+            }
+        }
+
+        /** Finds the first constructor of [flowClass] whose parameters are named exactly as the fields of [tree]. */
+        private fun match(tree: JsonNode, flowClass: Class<out FlowLogic<*>>, om: ObjectMapper): MatchedArguments {
+            val parser = FlowConstructorCache.parser(flowClass, om)
+            val errors = ArrayList<String>()
+            for (signature in FlowConstructorCache.signatures(flowClass, parser)) {
+                val paramNames = signature.paramNames
+                if (paramNames == null) {
+                    errors.add("${signature.typeNames}: <constructor missing parameter reflection data>")
+                    continue
+                }
+                if (tree.size() > paramNames.size) {
+                    errors.add("${signature.prototype}: too many parameters")
+                    continue
+                }
+                val missing = paramNames.firstOrNull { tree[it] == null }
+                if (missing != null) {
+                    errors.add("${signature.prototype}: missing parameter $missing")
+                    continue
+                }
+                val argTypes = signature.nameTypeList.map { (_, type) -> type }.toString()
+                return MatchedArguments(tree, signature.nameTypeList, argTypes)
+            }
+            throw InteractiveShell.NoApplicableConstructor(errors)
+        }
+
+        private fun containsPlaceholder(node: JsonNode): Boolean {
+            return if (node.isTextual) node.textValue().contains(TOKEN_PREFIX) else node.any { containsPlaceholder(it) }
+        }
+    }
+
+    /** Arguments parsed into a tree and matched against a constructor, but not deserialized. */
+    private class MatchedArguments(val tree: JsonNode, val nameTypeList: List<Pair<String, Type>>, val argTypes: String)
+
+    /** The per-flow values placeholders are filled in from. */
+    class Values(val sequenceNumber: Long, val columns: List<String> = emptyList())
+
+    private sealed class Parameter {
+        class Static(val value: Any?) : Parameter()
+        class Dynamic(val name: String, val tree: JsonNode, val type: JavaType) : Parameter()
+    }
+
+    private sealed class Placeholder {
+        companion object {
+            fun parse(spec: String): Placeholder {
+                val parts = spec.split(':')
+                return when {
+                    spec == "i" -> SequenceNumber
+                    spec == "uuid" -> RandomUuid
+                    parts.size == 3 && parts[0] == "random" && parts[1].toLongOrNull() != null && parts[2].toLongOrNull() != null -> {
+                        val min = parts[1].toLong()
+                        val max = parts[2].toLong()
+                        require(min <= max) { "The range of \${$spec} is empty" }
+                        RandomNumber(min, max)
+                    }
+                    parts.size == 2 && parts[0] == "column" && (parts[1].toIntOrNull() ?: 0) > 0 -> Column(parts[1].toInt())
+                    else -> throw IllegalArgumentException(
+                        "Unknown placeholder \${$spec}, expected \${i}, \${uuid}, \${random:MIN:MAX} or \${column:N}"
+                    )
+                }
+            }
+        }
+
+        abstract fun valueFor(values: Values): String
+
+        object SequenceNumber : Placeholder() {
+            override fun valueFor(values: Values) = values.sequenceNumber.toString()
+        }
+
+        object RandomUuid : Placeholder() {
+            override fun valueFor(values: Values) = UUID.randomUUID().toString()
+        }
+
+        class RandomNumber(private val min: Long, private val max: Long) : Placeholder() {
+            override fun valueFor(values: Values) = (min + ThreadLocalRandom.current().nextLong(max - min + 1)).toString()
+        }
+
+        class Column(private val number: Int) : Placeholder() {
+            override fun valueFor(values: Values): String {
+                return values.columns.getOrNull(number - 1)
+                        ?: throw IllegalArgumentException("There is no column $number, the row has ${values.columns.size} columns")
+            }
+        }
+    }
+
+    /** Whether any of the parameters change from one set of arguments to the next. */
+    val hasPlaceholders: Boolean get() = placeholders.isNotEmpty()
+
+    /**
+     * Returns the constructor arguments with the placeholders filled in from [values].
+     *
+     * @throws InteractiveShell.NoApplicableConstructor if a filled in parameter can't be deserialized into its type.
+     */
+    @Throws(InteractiveShell.NoApplicableConstructor::class)
+    fun arguments(values: Values): Array<Any?> {
+        return parameters.map { parameter ->
+            when (parameter) {
+                is Parameter.Static -> parameter.value
+                is Parameter.Dynamic -> {
+                    val node = if (hasPlaceholders) substitute(parameter.tree, values) else parameter.tree
+                    try {
+                        om.readValue<Any>(node.traverse(om), parameter.type)
+                    } catch (e: Exception) {
+                        throw InteractiveShell.NoApplicableConstructor(listOf("$argTypes: ${parameter.name}: ${e.message}"))
+                    }
+                }
+            }
+        }.toTypedArray()
+    }
+
+    private fun substitute(node: JsonNode, values: Values): JsonNode = when {
+        node.isTextual -> TextNode.valueOf(TOKEN.replace(node.textValue()) { placeholders[it.groupValues[1].toInt()].valueFor(values) })
+        node.isObject -> JsonNodeFactory.instance.objectNode().also { copy ->
+            node.fields().forEach { (name, value) -> copy.replace(name, substitute(value, values)) }
+        }
+        node.isArray -> JsonNodeFactory.instance.arrayNode().also { copy -> node.forEach { copy.add(substitute(it, values)) } }
+        else -> node
+    }
+}
@@ -0,0 +1,334 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import net.corda.client.rpc.PermissionException
+import net.corda.client.rpc.RPCException
+import net.corda.core.flows.FlowLogic
+import net.corda.core.internal.rootCause
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.messaging.FlowHandle
+import net.corda.core.utilities.getOrThrow
+import org.crsh.text.Color
+import org.crsh.text.Decoration
+import org.crsh.text.RenderPrintWriter
+import org.fusesource.jansi.Ansi
+import java.io.BufferedWriter
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Starts a flow once for every line of an argument file, keeping at most [window] flows in flight at any one time.
+ *
+ * Each line holds the flow arguments in the same syntax as 'flow start', optionally wrapped in braces so that JSON objects
+ * can be used as they are. Blank lines and lines starting with '#' are ignored. Every flow that finishes, or whose arguments
+ * can't be parsed, is recorded in a journal, and lines already in the journal are skipped when the batch is run again.
+ * Lines that failed are tried again too if [retryFailed], as a failure may have been down to the node or the connection.
+ *
+ * With a [template], each line is instead a row of tab or comma separated values, which the template refers to as
+ * `${column:N}`, and `${i}` is the line number. The template is only parsed once for the whole batch.
+ *
+ * With [useClientIds], every flow is started with a client id made up of a prefix kept in the journal and the line number,
+ * so the node itself refuses to start the same line twice. Started flows are journaled too, and if the batch is resumed
+ * before their outcome was recorded, because the shell was stopped or lost its connection, it reattaches to them by client
+ * id instead of starting them again. Client ids are removed from the node once the outcome is journaled.
+ *
+ * The outcome of every flow is also recorded in [resultSink] if there is one.
+ */
+internal class FlowBatchRunner(
+    private val rpcOps: CordaRPCOps,
+    private val flowClass: Class<out FlowLogic<*>>,
+    private val argumentsFile: Path,
+    private val template: FlowArgumentTemplate?,
+    private val journal: FlowBatchJournal,
+    private val window: Int,
+    private val useClientIds: Boolean,
+    private val retryFailed: Boolean,
+    private val resultSink: FlowResultSink?,
+    private val om: ObjectMapper,
+    private val output: RenderPrintWriter
+) {
+    companion object {
+        const val DEFAULT_WINDOW = 16
+        private const val PROGRESS_INTERVAL_MILLIS = 1000L
+
+        fun toFlowArguments(line: String): String {
+            val trimmed = line.trim()
+            return if (trimmed.startsWith("{") && trimmed.endsWith("}")) trimmed.substring(1, trimmed.length - 1) else trimmed
+        }
+
+        fun toColumns(line: String): List<String> = line.split(if ('\t' in line) '\t' else ',').map { it.trim() }
+    }
+
+    private val started = AtomicInteger()
+    private val completed = AtomicInteger()
+    private val failed = AtomicInteger()
+    private val detached = AtomicInteger()
+    private var reattached = 0
+    private val startTime = System.nanoTime()
+    private var progressShown = false
+
+    /**
+     * Runs the batch until every line has been processed, or until the thread is interrupted. In the latter case flows
+     * that are already in flight carry on running on the node, and are journaled as they finish for as long as the shell
+     * stays connected.
+     */
+    fun run() {
+        require(window > 0) { "The in-flight window must be at least 1" }
+        val completedLines = journal.completedLines()
+        val failedLines = journal.failedLines() - completedLines
+        val done = if (retryFailed) completedLines else completedLines + failedLines
+        if (done.isNotEmpty()) {
+            output.println("Resuming batch, skipping ${done.size} lines already in ${journal.path}")
+        }
+        if (failedLines.isNotEmpty()) {
+            output.println(
+                if (retryFailed) "Retrying ${failedLines.size} lines that failed before."
+                else "${failedLines.size} lines failed before and are skipped, use --retry-failed to try them again."
+            )
+        }
+        val clientIdPrefix = if (useClientIds) journal.clientIdPrefix() else null
+        // The flows of retried lines have finished, so they're started again rather than reattached to.
+        val unfinished = if (useClientIds) journal.startedLines() - completedLines - failedLines else emptySet()
+        // Removing client ids is an RPC of its own, which mustn't be made from the thread delivering flow results. The
+        // thread goes away by itself once idle, as flows left in flight by an interrupted batch still need cleaning up.
+        val cleanup = ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, LinkedBlockingQueue(),
+            ThreadFactoryBuilder().setNameFormat("Shell flow batch cleanup").setDaemon(true).build())
+        val permits = Semaphore(window)
+        try {
+            Files.newBufferedReader(argumentsFile, UTF_8).useLines { lines ->
+                lines.forEachIndexed { index, line ->
+                    val lineNumber = index + 1
+                    if (line.isBlank() || line.trimStart().startsWith("#") || lineNumber in done) return@forEachIndexed
+                    acquireShowingProgress(permits, 1)
+                    val clientId = clientIdPrefix?.let { "$it-$lineNumber" }
+                    if (!start(lineNumber, line, clientId, lineNumber in unfinished, permits, cleanup)) permits.release()
+                }
+            }
+            acquireShowingProgress(permits, window)
+            showProgress()
+            if (reattached > 0) {
+                output.println("Reattached to $reattached flows started by an earlier run.")
+            }
+            if (detached.get() > 0) {
+                output.println(
+                    if (useClientIds) {
+                        "Lost the connection to ${detached.get()} flows before they finished, run the same command again to reattach to them."
+                    } else {
+                        // Without client ids there is nothing to reattach with, the node may still finish these flows.
+                        "Lost the connection to ${detached.get()} flows before they finished, running the same command again " +
+                                "will start them again. Use --client-ids so that a rerun reattaches to flows instead."
+                    },
+                    Decoration.bold,
+                    Color.yellow
+                )
+            } else {
+                output.println("Batch completed.", Decoration.bold, Color.green)
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            showProgress()
+            output.println(
+                "Batch interrupted with ${window - permits.availablePermits()} flows in flight, run the same command again to resume.",
+                Decoration.bold,
+                Color.yellow
+            )
+        } finally {
+            journal.close()
+            output.flush()
+        }
+    }
+
+    /**
+     * Starts the flow for one line, or reattaches to it if it was [previouslyStarted] with [clientId]. Returns false if
+     * the flow couldn't be started.
+     */
+    private fun start(
+        lineNumber: Int,
+        line: String,
+        clientId: String?,
+        previouslyStarted: Boolean,
+        permits: Semaphore,
+        cleanup: Executor
+    ): Boolean {
+        val startedAt = Instant.now()
+        val handle: FlowHandle<*> = try {
+            val existing = if (clientId != null && previouslyStarted) rpcOps.reattachFlowWithClientId<Any?>(clientId) else null
+            if (existing != null) {
+                reattached++
+                existing
+            } else {
+                val args = if (template != null) {
+                    template.arguments(FlowArgumentTemplate.Values(lineNumber.toLong(), toColumns(line)))
+                } else {
+                    // Every line is different, so there's nothing to gain from the template cache behind parseFlowArguments.
+                    FlowArgumentTemplate.parse(toFlowArguments(line), flowClass, om, placeholders = false).arguments(FlowArgumentTemplate.Values(0))
+                }
+                if (clientId != null) {
+                    rpcOps.startFlowDynamicWithClientId(clientId, flowClass, *args).also { journal.started(lineNumber, it.id.uuid.toString(), clientId) }
+                } else {
+                    rpcOps.startFlowDynamic(flowClass, *args)
+                }
+            }
+        } catch (e: InteractiveShell.NoApplicableConstructor) {
+            failed.incrementAndGet()
+            journal.failed(lineNumber, null, e.errors.joinToString("; "))
+            message("Line $lineNumber: no matching constructor found: ${e.errors.joinToString("; ")}")
+            return false
+        } catch (e: PermissionException) {
+            throw e
+        } catch (e: Exception) {
+            failed.incrementAndGet()
+            journal.failed(lineNumber, null, e.rootCause.toString())
+            message("Line $lineNumber: failed to start flow: ${e.rootCause}")
+            return false
+        } finally {
+            InputStreamDeserializer.closeAll()
+        }
+        started.incrementAndGet()
+        resultSink?.track(handle, flowClass.name, startedAt)
+        handle.returnValue.then {
+            try {
+                it.getOrThrow()
+                completed.incrementAndGet()
+                journal.completed(lineNumber, handle.id.uuid.toString())
+                if (clientId != null) cleanup.execute { removeClientId(clientId) }
+            } catch (e: RPCException) {
+                // The flow is most likely still running, but its outcome can only be collected by reattaching to it.
+                detached.incrementAndGet()
+            } catch (e: Exception) {
+                failed.incrementAndGet()
+                journal.failed(lineNumber, handle.id.uuid.toString(), e.rootCause.toString())
+                if (clientId != null) cleanup.execute { removeClientId(clientId) }
+            } finally {
+                // Release the slot only once the outcome has been journaled, so waiting for all the permits to come back
+                // also waits for the journal to be complete.
+                permits.release()
+            }
+        }
+        return true
+    }
+
+    private fun removeClientId(clientId: String) {
+        try {
+            rpcOps.removeClientId(clientId)
+        } catch (e: Exception) {
+            // The node drops the client id eventually in any case.
+        }
+    }
+
+    private fun acquireShowingProgress(permits: Semaphore, count: Int) {
+        while (!permits.tryAcquire(count, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            showProgress()
+        }
+    }
+
+    private fun message(text: String) {
+        output.println(text, Decoration.bold, Color.red)
+        progressShown = false
+    }
+
+    private fun showProgress() {
+        val elapsedSeconds = (System.nanoTime() - startTime) / 1e9
+        val rate = if (elapsedSeconds > 0) completed.get() / elapsedSeconds else 0.0
+        val line = "Started: ${started.get()}, completed: ${completed.get()}, failed: ${failed.get()}, " +
+                "${"%.1f".format(rate)} flows/sec"
+        if (progressShown) {
+            // Overwrite the previous progress line rather than scrolling.
+            output.print(Ansi().cursorUp(1).eraseLine())
+        }
+        output.println(line)
+        output.flush()
+        progressShown = true
+    }
+}
+
+/**
+ * An append-only record of the argument file lines a batch has processed, one line each in the form
+ * "<line number> <COMPLETED|FAILED> <run id or -> [reason]". Batches run with client ids also record the flows they start
+ * as "<line number> STARTED <run id> <client id>", and keep the prefix of their client ids in a "# client-id-prefix" line.
+ */
+internal class FlowBatchJournal(val path: Path) : AutoCloseable {
+    companion object {
+        private const val STARTED = "STARTED"
+        private const val COMPLETED = "COMPLETED"
+        private const val FAILED = "FAILED"
+        private const val CLIENT_ID_PREFIX = "# client-id-prefix "
+
+        fun forArgumentsFile(argumentsFile: Path): FlowBatchJournal {
+            return FlowBatchJournal(argumentsFile.resolveSibling("${argumentsFile.fileName}.journal"))
+        }
+    }
+
+    private var writer: BufferedWriter? = null
+    private var closed = false
+
+    /** The lines whose outcome has been recorded. */
+    fun processedLines(): Set<Int> = linesWithStatus(COMPLETED, FAILED)
+
+    /** The lines whose flow has completed, including those that failed before and were retried. */
+    fun completedLines(): Set<Int> = linesWithStatus(COMPLETED)
+
+    /** The lines that have failed at least once, they may have completed since. */
+    fun failedLines(): Set<Int> = linesWithStatus(FAILED)
+
+    /** The lines whose flow has been started with a client id, whether or not its outcome has been recorded. */
+    fun startedLines(): Set<Int> = linesWithStatus(STARTED)
+
+    /**
+     * The prefix of the client ids of this batch. It's generated and recorded the first time it's asked for, so the same
+     * line gets the same client id however many times the batch is resumed.
+     */
+    @Synchronized
+    fun clientIdPrefix(): String {
+        val recorded = readEntries().firstOrNull { it.startsWith(CLIENT_ID_PREFIX) }?.removePrefix(CLIENT_ID_PREFIX)?.trim()
+        return recorded ?: "shell-batch-${UUID.randomUUID()}".also { append("$CLIENT_ID_PREFIX$it") }
+    }
+
+    fun started(lineNumber: Int, runId: String, clientId: String) = append("$lineNumber $STARTED $runId $clientId")
+
+    fun completed(lineNumber: Int, runId: String) = append("$lineNumber $COMPLETED $runId")
+
+    fun failed(lineNumber: Int, runId: String?, reason: String) {
+        append("$lineNumber $FAILED ${runId ?: "-"} ${reason.replace('\n', ' ')}")
+    }
+
+    private fun readEntries(): List<String> = if (Files.exists(path)) Files.readAllLines(path, UTF_8) else emptyList()
+
+    private fun linesWithStatus(vararg statuses: String): Set<Int> {
+        return readEntries().mapNotNull { entry ->
+            val fields = entry.split(' ', limit = 3)
+            if (fields.size >= 2 && fields[1] in statuses) fields[0].toIntOrNull() else null
+        }.toSet()
+    }
+
+    @Synchronized
+    private fun append(entry: String) {
+        val writer = writer ?: Files.newBufferedWriter(path, UTF_8, CREATE, APPEND).also { writer = it }
+        writer.write(entry)
+        writer.newLine()
+        writer.flush()
+        if (closed) {
+            // Flows that were in flight when the batch was interrupted still get recorded as they finish.
+            close()
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        closed = true
+        writer?.close()
+        writer = null
+    }
+}
@@ -0,0 +1,119 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.benmanes.caffeine.cache.Caffeine
+import net.corda.client.jackson.StringToMethodCallParser
+import net.corda.core.flows.FlowLogic
+import net.corda.core.internal.packageName_
+import net.corda.core.internal.uncheckedCast
+import java.lang.reflect.Constructor
+import java.lang.reflect.GenericArrayType
+import java.lang.reflect.ParameterizedType
+import java.lang.reflect.Type
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Caches what the shell needs to know about the constructors of a flow class in order to match them against user input:
+ * the parameter names, their generic types and the prototypes printed when nothing matches.
+ *
+ * The signatures are kept in a [ClassValue], that is with the flow class itself, which identifies both the flow class and
+ * the class loader that defined it. They refer to the class through its constructors, which doesn't stop a CorDapp class
+ * loader that is dropped from being collected, together with its classes and their signatures.
+ *
+ * The [StringToMethodCallParser]s are cached as well, per object mapper, since building one reflects over every method of
+ * the flow class. A parser refers to both its mapper and its flow class, so the most recently used [MAX_PARSERS] of
+ * them are kept, and only for [PARSER_RETENTION_MINUTES] after they were last used.
+ */
+internal object FlowConstructorCache {
+    class ConstructorSignature(
+        val constructor: Constructor<*>,
+        /** The parameter names, or null if the constructor doesn't carry the reflection data to find them. */
+        val paramNames: List<String>?,
+        /** The parameter names zipped with their generic types, as expected by [StringToMethodCallParser]. */
+        val nameTypeList: List<Pair<String, Type>>,
+        /** The "name: Type" prototype with well known package names abbreviated, used in error messages. */
+        val prototype: List<String>,
+        /** The fully qualified parameter type names, used in error messages when the names are unavailable. */
+        val typeNames: List<String>
+    )
+
+    const val MAX_PARSERS = 256L
+    const val PARSER_RETENTION_MINUTES = 10L
+
+    private val signatures = object : ClassValue<AtomicReference<List<ConstructorSignature>>>() {
+        override fun computeValue(type: Class<*>) = AtomicReference<List<ConstructorSignature>>()
+    }
+
+    /** Parsers by mapper and flow class. Mappers don't override equals, so they're compared by identity. */
+    private val parsers = Caffeine.newBuilder()
+        .maximumSize(MAX_PARSERS)
+        .expireAfterAccess(PARSER_RETENTION_MINUTES, TimeUnit.MINUTES)
+        .build<Pair<ObjectMapper, Class<*>>, StringToMethodCallParser<*>>()
+
+    fun <T> parser(clazz: Class<out FlowLogic<T>>, om: ObjectMapper): StringToMethodCallParser<FlowLogic<T>> {
+        return uncheckedCast(parsers.get(Pair(om, clazz)) { StringToMethodCallParser(clazz, om) })
+    }
+
+    fun signatures(clazz: Class<out FlowLogic<*>>, parser: StringToMethodCallParser<*>): List<ConstructorSignature> {
+        val holder = signatures.get(clazz)
+        holder.get()?.let { return it }
+        // Resolving twice in a race is harmless, the first to finish is kept.
+        holder.compareAndSet(null, resolve(clazz, parser))
+        return holder.get()
+    }
+
+    private fun resolve(clazz: Class<*>, parser: StringToMethodCallParser<*>): List<ConstructorSignature> {
+        val classPackage = clazz.packageName_
+        return clazz.constructors.map { ctor ->
+            val types = ctor.genericParameterTypes.toList()
+            val paramNames = try {
+                parser.paramNamesFromConstructor(ctor)
+            } catch (e: StringToMethodCallParser.UnparseableCallException.ReflectionDataMissing) {
+                null
+            }
+            // If the type name is in the net.corda.core or java namespaces, chop off the package name
+            // because these hierarchies don't have (m)any ambiguous names and the extra detail is just noise.
+            val abbreviatedTypes = types.map { maybeAbbreviateGenericType(it, classPackage) }
+            ConstructorSignature(
+                constructor = ctor,
+                paramNames = paramNames,
+                nameTypeList = paramNames?.zip(types) ?: emptyList(),
+                prototype = paramNames?.zip(abbreviatedTypes)?.map { (name, type) -> "$name: $type" } ?: emptyList(),
+                typeNames = types.map { it.typeName }
+            )
+        }
+    }
+
+    /**
+     * Tidies up a possibly generic type name by chopping off the package names of classes in a hard-coded set of
+     * hierarchies that are known to be widely used and recognised, and also not have (m)any ambiguous names in them.
+     *
+     * This is used for printing error messages when something doesn't match.
+     */
+    private fun maybeAbbreviateGenericType(type: Type, extraRecognisedPackage: String): String {
+        val packagesToAbbreviate = listOf("java.", "net.corda.core.", "kotlin.", extraRecognisedPackage)
+
+        fun shouldAbbreviate(typeName: String) = packagesToAbbreviate.any { typeName.startsWith(it) }
+        fun abbreviated(typeName: String) = if (shouldAbbreviate(typeName)) typeName.split('.').last() else typeName
+
+        fun innerLoop(type: Type): String = when (type) {
+            is ParameterizedType -> {
+                val args: List<String> = type.actualTypeArguments.map(::innerLoop)
+                abbreviated(type.rawType.typeName) + '<' + args.joinToString(", ") + '>'
+            }
+            is GenericArrayType -> {
+                innerLoop(type.genericComponentType) + "[]"
+            }
+            is Class<*> -> {
+                if (type.isArray)
+                    abbreviated(type.simpleName)
+                else
+                    abbreviated(type.name).replace('$', '.')
+            }
+            else -> type.toString()
+        }
+
+        return innerLoop(type)
+    }
+}
@@ -0,0 +1,174 @@
+package net.corda.tools.shell
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import net.corda.core.internal.rootCause
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.utilities.getOrThrow
+import org.crsh.text.Color
+import org.crsh.text.Decoration
+import org.crsh.text.RenderPrintWriter
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * An open-loop load generator: starts the flow of [template] at a fixed [rate] for [durationSeconds], whether or not earlier flows
+ * have finished, and reports latency percentiles and throughput every [reportIntervalSeconds] and at the end.
+ *
+ * Every start has an intended start time on the schedule, and latencies are measured from that time rather than from
+ * when the RPC call was actually made. A node (or shell) that falls behind therefore shows up as higher latency instead
+ * of a quietly lower request rate, which is the coordinated omission problem closed-loop clients suffer from.
+ *
+ * Two latencies are recorded for each flow: until the node has accepted the start request, and until the flow's return
+ * value has arrived. The sequence number of each flow is available to the template as `${i}`.
+ */
+internal class FlowLoadGenerator(
+    private val rpcOps: CordaRPCOps,
+    private val template: FlowArgumentTemplate,
+    private val rate: Double,
+    private val durationSeconds: Long,
+    private val reportIntervalSeconds: Long,
+    private val threads: Int,
+    private val output: RenderPrintWriter
+) {
+    companion object {
+        const val DEFAULT_DURATION_SECONDS = 60L
+        const val DEFAULT_REPORT_INTERVAL_SECONDS = 10L
+        const val DEFAULT_THREADS = 32
+        private const val DRAIN_TIMEOUT_SECONDS = 60L
+        private val PERCENTILES = listOf(50.0, 90.0, 99.0, 99.9)
+    }
+
+    private val ackLatencies = LatencyHistogram()
+    private val completionLatencies = LatencyHistogram()
+    private val totalAckLatencies = LatencyHistogram()
+    private val totalCompletionLatencies = LatencyHistogram()
+    private val started = AtomicLong()
+    private val completed = AtomicLong()
+    private val failed = AtomicLong()
+    private val failedToStart = AtomicLong()
+    private val inFlight = AtomicInteger()
+    private var lastReportCompleted = 0L
+
+    fun run() {
+        require(rate > 0) { "The rate must be positive" }
+        val periodNanos = (TimeUnit.SECONDS.toNanos(1) / rate).toLong()
+        val total = (durationSeconds * rate).toLong()
+        val workers = Executors.newFixedThreadPool(threads, ThreadFactoryBuilder().setNameFormat("Shell flow load-%d").setDaemon(true).build())
+        val reporter = Executors.newSingleThreadScheduledExecutor(ThreadFactoryBuilder().setNameFormat("Shell flow load reporter").setDaemon(true).build())
+        val startTime = System.nanoTime()
+        reporter.scheduleAtFixedRate({ report("${TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime)}s", reportIntervalSeconds.toDouble()) },
+            reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS)
+        output.println("Starting $total flows at $rate flows/sec over ${durationSeconds}s.")
+        output.flush()
+        try {
+            for (i in 0 until total) {
+                val intendedStart = startTime + i * periodNanos
+                while (true) {
+                    val wait = intendedStart - System.nanoTime()
+                    if (wait <= 0) break
+                    LockSupport.parkNanos(wait)
+                    if (Thread.interrupted()) throw InterruptedException()
+                }
+                // Hand off to the worker pool so that a slow start doesn't hold up the schedule. If the pool is saturated,
+                // the time spent queueing is included in the latency.
+                workers.execute { startFlow(i, intendedStart) }
+            }
+            val drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS)
+            while ((inFlight.get() > 0 || started.get() + failedToStart.get() < total) && System.nanoTime() < drainDeadline) {
+                Thread.sleep(10)
+            }
+            val stillInFlight = inFlight.get()
+            if (stillInFlight > 0) {
+                synchronized(output) {
+                    output.println("Stopped waiting after ${DRAIN_TIMEOUT_SECONDS}s, $stillInFlight flows were still in flight.", Decoration.bold, Color.yellow)
+                }
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            synchronized(output) {
+                output.println("Load run interrupted, ${inFlight.get()} flows were still in flight.", Decoration.bold, Color.yellow)
+            }
+        } finally {
+            reporter.shutdownNow()
+            workers.shutdownNow()
+        }
+        val elapsedSeconds = (System.nanoTime() - startTime) / 1e9
+        totalAckLatencies.add(ackLatencies.snapshotAndReset())
+        totalCompletionLatencies.add(completionLatencies.snapshotAndReset())
+        printSummary(elapsedSeconds)
+    }
+
+    private fun startFlow(sequenceNumber: Long, intendedStart: Long) {
+        val handle = try {
+            rpcOps.startFlowDynamic(template.flowClass, *template.arguments(FlowArgumentTemplate.Values(sequenceNumber)))
+        } catch (e: Exception) {
+            failed.incrementAndGet()
+            if (failedToStart.incrementAndGet() == 1L) {
+                // Report the first failure only, a misconfigured run would otherwise flood the terminal.
+                message("Failed to start flow: ${e.rootCause}")
+            }
+            return
+        }
+        ackLatencies.record(micros(System.nanoTime() - intendedStart))
+        // In flight is counted first, so that the drain never sees a started flow that isn't yet in flight.
+        inFlight.incrementAndGet()
+        started.incrementAndGet()
+        handle.returnValue.then {
+            val latency = micros(System.nanoTime() - intendedStart)
+            try {
+                it.getOrThrow()
+                completionLatencies.record(latency)
+                completed.incrementAndGet()
+            } catch (e: Exception) {
+                failed.incrementAndGet()
+            } finally {
+                inFlight.decrementAndGet()
+            }
+        }
+    }
+
+    private fun micros(nanos: Long) = TimeUnit.NANOSECONDS.toMicros(nanos)
+
+    private fun report(label: String, intervalSeconds: Double) {
+        val ack = ackLatencies.snapshotAndReset()
+        val completion = completionLatencies.snapshotAndReset()
+        totalAckLatencies.add(ack)
+        totalCompletionLatencies.add(completion)
+        val completedNow = completed.get()
+        val throughput = (completedNow - lastReportCompleted) / intervalSeconds
+        lastReportCompleted = completedNow
+        message(
+            "[$label] started: ${started.get()}, completed: $completedNow, failed: ${failed.get()}, in flight: ${inFlight.get()}, " +
+                    "throughput: ${"%.1f".format(throughput)} flows/sec",
+            "    start ack:  ${percentiles(ack)}",
+            "    completion: ${percentiles(completion)}"
+        )
+    }
+
+    private fun printSummary(elapsedSeconds: Double) {
+        message(
+            "Finished after ${"%.1f".format(elapsedSeconds)}s. started: ${started.get()}, completed: ${completed.get()}, " +
+                    "failed: ${failed.get()}, throughput: ${"%.1f".format(completed.get() / elapsedSeconds)} flows/sec",
+            "    start ack:  ${percentiles(totalAckLatencies)}",
+            "    completion: ${percentiles(totalCompletionLatencies)}"
+        )
+    }
+
+    private fun percentiles(histogram: LatencyHistogram): String {
+        if (histogram.totalCount == 0L) return "no samples"
+        return PERCENTILES.joinToString(", ") { "p$it=${millis(histogram.valueAtPercentile(it))}" } +
+                ", max=${millis(histogram.maxValue)} (${histogram.totalCount} samples)"
+    }
+
+    private fun millis(micros: Long) = "%.2fms".format(micros / 1000.0)
+
+    private fun message(vararg lines: String) {
+        synchronized(output) {
+            lines.forEach { output.println(it) }
+            output.flush()
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.corda.tools.shell
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import net.corda.core.messaging.CordaRPCOps
+import org.slf4j.LoggerFactory
+import java.lang.ref.WeakReference
+import java.util.BitSet
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A local index over the flow names registered on a node, used to resolve the name fragments passed to 'flow start'
+ * without a [CordaRPCOps.registeredFlows] round trip and a linear scan on every invocation.
+ *
+ * The index is built on first use and then refreshed in the background once it is older than [refreshIntervalMillis].
+ * A fragment that doesn't match anything forces a synchronous refresh, in case a CorDapp has been installed since.
+ */
+internal class FlowNameIndex(
+    private val registeredFlows: () -> List<String>,
+    private val refreshIntervalMillis: Long = DEFAULT_REFRESH_INTERVAL_MILLIS
+) {
+    companion object {
+        private val log = LoggerFactory.getLogger(FlowNameIndex::class.java)
+        const val DEFAULT_REFRESH_INTERVAL_MILLIS = 30_000L
+        private const val GRAM_SIZE = 3
+
+        private val refresher: ExecutorService = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder().setNameFormat("Shell flow name index refresher").setDaemon(true).build()
+        )
+
+        /**
+         * The index of the flows registered on the node [rpcOps] is connected to. The index only holds on to [rpcOps]
+         * weakly, so that it can be kept in a cache weakly keyed by [rpcOps].
+         */
+        fun forRpcOps(rpcOps: CordaRPCOps): FlowNameIndex {
+            val connection = WeakReference(rpcOps)
+            return FlowNameIndex({
+                val current = connection.get() ?: throw IllegalStateException("The RPC connection has been closed")
+                current.registeredFlows()
+            })
+        }
+    }
+
+    sealed class Resolution {
+        data class Match(val flowName: String) : Resolution()
+        data class Ambiguous(val options: List<String>) : Resolution()
+        object NoMatch : Resolution()
+    }
+
+    /**
+     * An immutable snapshot of the registered flows. Names are kept sorted by length, so that walking the set bits of a
+     * candidate set gives the same ordering the shell has always used for listing ambiguous matches.
+     */
+    private class Snapshot(flowNames: List<String>, val builtAt: Long) {
+        val names: List<String> = flowNames.distinct().sortedBy { it.length }
+        private val grams = HashMap<String, BitSet>()
+
+        init {
+            names.forEachIndexed { i, name ->
+                for (start in 0..name.length - GRAM_SIZE) {
+                    grams.getOrPut(name.substring(start, start + GRAM_SIZE)) { BitSet(names.size) }.set(i)
+                }
+            }
+        }
+
+        fun matching(fragment: String): List<String> {
+            if (fragment.length < GRAM_SIZE) {
+                return names.filter { fragment in it }
+            }
+            // Every name containing the fragment contains all of its trigrams, so intersecting their posting sets
+            // narrows the candidates down before the final containment check.
+            val candidates = BitSet(names.size).apply { set(0, names.size) }
+            for (start in 0..fragment.length - GRAM_SIZE) {
+                val posting = grams[fragment.substring(start, start + GRAM_SIZE)] ?: return emptyList()
+                candidates.and(posting)
+                if (candidates.isEmpty) return emptyList()
+            }
+            val result = ArrayList<String>(candidates.cardinality())
+            var i = candidates.nextSetBit(0)
+            while (i >= 0) {
+                if (fragment in names[i]) result += names[i]
+                i = candidates.nextSetBit(i + 1)
+            }
+            return result
+        }
+    }
+
+    @Volatile
+    private var snapshot: Snapshot? = null
+    private val refreshScheduled = AtomicBoolean(false)
+
+    /**
+     * Resolves [nameFragment] against the registered flows. A fragment matches a single flow if it is the only flow
+     * containing it, or if the flow name ends with it.
+     *
+     * @throws net.corda.client.rpc.PermissionException if the index has to be (re)built and the user may not list flows.
+     */
+    fun resolve(nameFragment: String): Resolution {
+        val existing = snapshot
+        var matches = (existing ?: refresh()).matching(nameFragment)
+        if (existing != null) {
+            if (matches.isEmpty()) {
+                matches = refresh().matching(nameFragment)
+            } else {
+                refreshInBackgroundIfStale(existing)
+            }
+        }
+
+        val exactMatch = matches.find { it.endsWith(nameFragment) }
+        return when {
+            matches.isEmpty() -> Resolution.NoMatch
+            matches.size > 1 && exactMatch == null -> Resolution.Ambiguous(matches)
+            else -> Resolution.Match(exactMatch ?: matches.single())
+        }
+    }
+
+    private fun refresh(): Snapshot {
+        return Snapshot(registeredFlows(), System.nanoTime()).also { snapshot = it }
+    }
+
+    private fun refreshInBackgroundIfStale(current: Snapshot) {
+        val age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.builtAt)
+        if (age < refreshIntervalMillis || !refreshScheduled.compareAndSet(false, true)) return
+        refresher.execute {
+            try {
+                refresh()
+            } catch (e: Exception) {
+                // Keep serving the previous snapshot, the next stale lookup will try again.
+                log.warn("Failed to refresh the registered flows: ${e.message}")
+            } finally {
+                refreshScheduled.set(false)
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import net.corda.core.internal.rootCause
+import net.corda.core.messaging.FlowHandle
+import net.corda.core.transactions.SignedTransaction
+import net.corda.core.utilities.getOrThrow
+import net.corda.core.utilities.loggerFor
+import java.io.BufferedWriter
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.PrintWriter
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.WRITE
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Appends the outcome of flows to a file, one JSON object per line, with the fields `runId`, `flowClass`, `start`, `end`,
+ * `durationMillis`, `success`, `txId` (when the flow returned a [SignedTransaction]) and `error` (the root cause of a
+ * failure).
+ *
+ * Outcomes are queued as they arrive and serialized and written by a thread of the sink's own, so neither the thread
+ * delivering flow results nor the terminal waits on the file. The file is flushed whenever the queue runs dry. Records
+ * that can't be written are kept and tried again, see [writeFailure]. Before trying again, the file is cut back to where
+ * the last successful flush left it, so that records which were partly written aren't duplicated or left torn.
+ *
+ * Commands pointed at the same file share one sink, which they get from [forFile] and give back with [release]. Once
+ * every command has given it back and the outcome of every flow it tracked has been written, the file is closed and the
+ * thread stops.
+ */
+internal class FlowResultSink private constructor(val path: Path) {
+    companion object {
+        private val log = loggerFor<FlowResultSink>()
+        private const val POLL_MILLIS = 200L
+        private const val RETRY_MILLIS = 1000L
+
+        /** How many times writing is tried again once the sink is no longer used, before the records left are dropped. */
+        private const val RETRIES_ONCE_RELEASED = 10
+
+        /** The sinks in use or still writing, by file. Also guards [users]. */
+        private val sinks = HashMap<Path, FlowResultSink>()
+
+        @JvmStatic
+        fun forFile(file: String): FlowResultSink {
+            val path = Paths.get(file).toAbsolutePath().normalize()
+            return synchronized(sinks) {
+                sinks.getOrPut(path) { FlowResultSink(path) }.also { it.users++ }
+            }
+        }
+    }
+
+    private val mapper = ObjectMapper()
+    private val queue = LinkedBlockingDeque<Map<String, Any?>>()
+    private var users = 0
+    /** The tracked flows whose outcome hasn't been queued yet. */
+    private val running = AtomicInteger()
+
+    /** The last error writing to the file, or null if nothing has gone wrong. */
+    @Volatile
+    var writeFailure: IOException? = null
+        private set
+
+    init {
+        thread(isDaemon = true, name = "Shell flow results writer") { writeRecords() }
+    }
+
+    /** Records the outcome of the flow behind [handle] once it's known. [start] is when the shell asked for the flow. */
+    fun track(handle: FlowHandle<*>, flowClass: String, start: Instant) {
+        running.incrementAndGet()
+        handle.returnValue.then {
+            val end = Instant.now()
+            val record = LinkedHashMap<String, Any?>()
+            record["runId"] = handle.id.uuid.toString()
+            record["flowClass"] = flowClass
+            record["start"] = start.toString()
+            record["end"] = end.toString()
+            record["durationMillis"] = Duration.between(start, end).toMillis()
+            try {
+                val result = it.getOrThrow()
+                record["success"] = true
+                if (result is SignedTransaction) record["txId"] = result.id.toString()
+            } catch (e: Exception) {
+                record["success"] = false
+                record["error"] = e.rootCause.toString()
+            }
+            queue.put(record)
+            running.decrementAndGet()
+        }
+    }
+
+    /**
+     * Gives the sink back once a command is done with it, printing to [output] if results couldn't be written. The
+     * outcomes of flows still running are written as they finish.
+     */
+    fun release(output: PrintWriter) {
+        synchronized(sinks) { users-- }
+        writeFailure?.let {
+            output.println("Some flow results could not be written to $path, they will be tried again: ${it.message}")
+        }
+    }
+
+    /** Whether nothing uses the sink any more and there is nothing left to write, in which case it's forgotten. */
+    private fun isFinished(): Boolean {
+        synchronized(sinks) {
+            if (users > 0 || running.get() > 0 || queue.isNotEmpty()) return false
+            sinks.remove(path)
+            return true
+        }
+    }
+
+    /**
+     * Opens the file for appending. If writing to it failed before, whatever was written after [goodSize] is cut off
+     * first, as it's written again.
+     */
+    private fun open(goodSize: Long?): Pair<FileChannel, BufferedWriter> {
+        val channel = FileChannel.open(path, CREATE, WRITE)
+        try {
+            if (goodSize != null) channel.truncate(goodSize)
+            channel.position(channel.size())
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+        return Pair(channel, BufferedWriter(OutputStreamWriter(Channels.newOutputStream(channel), UTF_8)))
+    }
+
+    private fun writeRecords() {
+        var channel: FileChannel? = null
+        var writer: BufferedWriter? = null
+        // The size of the file after the last successful flush, once it has been opened.
+        var goodSize: Long? = null
+        // Written but not flushed yet, so written again if flushing fails.
+        val unflushed = ArrayList<Map<String, Any?>>()
+        var retries = 0
+        try {
+            while (true) {
+                val record = if (unflushed.isEmpty()) queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS) else queue.poll()
+                if (record == null && unflushed.isEmpty()) {
+                    if (isFinished()) return
+                    continue
+                }
+                if (record != null) unflushed += record
+                try {
+                    val out = writer ?: open(goodSize).let { (opened, openedWriter) ->
+                        channel = opened
+                        writer = openedWriter
+                        if (goodSize == null) goodSize = opened.position()
+                        openedWriter
+                    }
+                    if (record != null) {
+                        out.write(mapper.writeValueAsString(record))
+                        out.newLine()
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush()
+                        goodSize = channel!!.position()
+                        unflushed.clear()
+                        retries = 0
+                    }
+                } catch (e: IOException) {
+                    writeFailure = e
+                    log.warn("Cannot write flow results to $path, trying again", e)
+                    try {
+                        writer?.close()
+                    } catch (ignored: IOException) {
+                    }
+                    writer = null
+                    channel = null
+                    // What wasn't flushed is written again once the file can be opened again, from the last good size.
+                    val retry = ArrayList(unflushed)
+                    unflushed.clear()
+                    if (synchronized(sinks) { users == 0 } && ++retries > RETRIES_ONCE_RELEASED) {
+                        val dropped = retry.size + queue.size
+                        queue.clear()
+                        log.error("Giving up writing flow results to $path, $dropped results have been dropped")
+                        continue
+                    }
+                    retry.reversed().forEach { queue.putFirst(it) }
+                    Thread.sleep(RETRY_MILLIS)
+                }
+            }
+        } finally {
+            writer?.close()
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import net.corda.core.flows.FlowLogic
+import net.corda.core.internal.uncheckedCast
+import net.corda.core.messaging.CordaRPCOps
+import org.slf4j.LoggerFactory
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * Does up front the work the first 'flow start' of each flow would otherwise do: loading and initialising the flow class,
+ * reflecting over its constructors, and building the Jackson deserializers for the constructor parameter types into [om].
+ *
+ * The flows registered on the node are warmed up in parallel, as their classes are mostly independent of one another.
+ */
+internal class FlowWarmUp(
+    private val rpcOps: CordaRPCOps,
+    private val classLoader: ClassLoader,
+    private val om: ObjectMapper
+) {
+    private companion object {
+        private val log = LoggerFactory.getLogger(FlowWarmUp::class.java)
+        private const val MAX_THREADS = 8
+    }
+
+    /** Warms up every registered flow, returning how many of them were warmed up successfully. */
+    fun run(): Int {
+        val flowNames = rpcOps.registeredFlows()
+        if (flowNames.isEmpty()) return 0
+        val threads = minOf(flowNames.size, Runtime.getRuntime().availableProcessors(), MAX_THREADS)
+        val pool = Executors.newFixedThreadPool(threads, ThreadFactoryBuilder().setNameFormat("Shell flow warm-up-%d").setDaemon(true).build())
+        try {
+            val warmedUp = flowNames.map { pool.submit(Callable { warmUp(it) }) }.count { it.get() }
+            log.info("Warmed up $warmedUp of ${flowNames.size} flows")
+            return warmedUp
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    private fun warmUp(flowName: String): Boolean {
+        return try {
+            val clazz = uncheckedCast<Class<*>, Class<FlowLogic<*>>>(Class.forName(flowName, true, classLoader))
+            val parser = FlowConstructorCache.parser(clazz, om)
+            for (signature in FlowConstructorCache.signatures(clazz, parser)) {
+                // Creating a reader fetches the root deserializer for the type eagerly, and the mapper keeps it.
+                signature.nameTypeList.forEach { (_, type) -> om.readerFor(om.typeFactory.constructType(type)) }
+            }
+            true
+        } catch (e: Exception) {
+            log.debug("Cannot warm up flow $flowName", e)
+            false
+        } catch (e: LinkageError) {
+            // The flow isn't in the CorDapps available to the shell, or its static initialiser failed.
+            log.debug("Cannot load flow $flowName", e)
+            false
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package net.corda.tools.shell
 
 import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonProcessingException
 import com.fasterxml.jackson.databind.JsonMappingException
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializationFeature
 import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory
 import com.fasterxml.jackson.dataformat.yaml.YAMLGenerator
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule
+import com.github.benmanes.caffeine.cache.Caffeine
 import net.corda.client.jackson.JacksonSupport
 import net.corda.client.jackson.StringToMethodCallParser
 import net.corda.client.rpc.PermissionException
@@ -15,6 +20,7 @@ import net.corda.client.rpc.internal.RPCUtils.isShutdownMethodName
 import net.corda.client.rpc.notUsed
 import net.corda.core.CordaException
 import net.corda.core.concurrent.CordaFuture
+import net.corda.core.contracts.ContractState
 import net.corda.core.contracts.UniqueIdentifier
 import net.corda.core.flows.FlowLogic
 import net.corda.core.flows.StateMachineRunId
@@ -25,16 +31,19 @@ import net.corda.core.internal.concurrent.openFuture
 import net.corda.core.internal.createDirectories
 import net.corda.core.internal.div
 import net.corda.core.internal.messaging.AttachmentTrustInfoRPCOps
-import net.corda.core.internal.packageName_
 import net.corda.core.internal.rootCause
 import net.corda.core.internal.uncheckedCast
 import net.corda.core.messaging.CordaRPCOps
 import net.corda.core.messaging.DataFeed
+import net.corda.core.messaging.FlowHandle
 import net.corda.core.messaging.FlowProgressHandle
 import net.corda.core.messaging.StateMachineUpdate
 import net.corda.core.messaging.flows.FlowManagerRPCOps
 import net.corda.core.messaging.pendingFlowsCount
+import net.corda.core.node.services.Vault
+import net.corda.core.node.services.vault.QueryCriteria
 import net.corda.tools.shell.utlities.ANSIProgressRenderer
+import net.corda.tools.shell.utlities.MultiFlowProgressRenderer
 import net.corda.tools.shell.utlities.StdoutANSIProgressRenderer
 import org.crsh.command.InvocationContext
 import org.crsh.command.ShellSafety
@@ -62,14 +71,17 @@ import rx.Observable
 import rx.Subscriber
 import java.io.FileDescriptor
 import java.io.FileInputStream
+import java.io.IOException
 import java.io.InputStream
 import java.io.PrintWriter
-import java.lang.reflect.GenericArrayType
 import java.lang.reflect.InvocationTargetException
-import java.lang.reflect.ParameterizedType
-import java.lang.reflect.Type
 import java.lang.reflect.UndeclaredThrowableException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
 import java.util.Properties
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutionException
@@ -86,17 +98,35 @@ object InteractiveShell {
     private var rpcConn: RPCConnection<CordaRPCOps>? = null
     private var shell: Shell? = null
     private var lifecycle: PluginLifeCycle? = null
+    private var localAuthInfo: CordaSSHAuthInfo? = null
     private var classLoader: ClassLoader? = null
     private lateinit var shellConfiguration: ShellConfiguration
     private var onExit: () -> Unit = {}
     private const val uuidStringSize = 36
 
+    /**
+     * Flow name indices, one per RPC connection. Weak keys compare by identity, so the RPC proxies are never asked for
+     * their hash codes. An index only refers to its connection weakly, see [FlowNameIndex.forRpcOps], so it goes away
+     * together with the connection it was built from.
+     */
+    private val flowNameIndices = Caffeine.newBuilder()
+        .weakKeys()
+        .build<CordaRPCOps, FlowNameIndex>()
+
     @JvmStatic
     fun getCordappsClassloader() = classLoader
 
-    enum class OutputFormat {
+    enum class OutputFormat(val binary: Boolean = false, val indented: Boolean = !binary, val separator: Char? = null) {
         JSON,
-        YAML
+        YAML,
+        /** JSON with one compact line per result, snapshot element or update, for piping into line-based tools. */
+        NDJSON(indented = false),
+        /** Binary formats, much smaller and quicker to write than text. They can only be written to a file. */
+        CBOR(binary = true),
+        SMILE(binary = true),
+        /** Tables of comma or tab separated values, one row per result element, with flattened dotted column names. */
+        CSV(indented = false, separator = ','),
+        TSV(indented = false, separator = '\t')
     }
 
     fun startShell(configuration: ShellConfiguration, classLoader: ClassLoader? = null, standalone: Boolean = false) {
@@ -168,6 +198,11 @@ object InteractiveShell {
             "Commands to extract information about checkpoints stored within the node",
             CheckpointShellCommand::class.java
         )
+        ExternalResolver.INSTANCE.addCommand(
+            "vault",
+            "Commands to query and export the vault, a page at a time.",
+            VaultShellCommand::class.java
+        )
 
         val shellSafety = ShellSafety().apply {
             setSafeShell(runShellInSafeMode)
@@ -247,12 +282,30 @@ object InteractiveShell {
             }
             // For local shell create an artificial authInfo with super user permissions
             val authInfo = CordaSSHAuthInfo(rpcOpsProducer, localUserName, localUserPassword, StdoutANSIProgressRenderer)
+            localAuthInfo = authInfo
             return context.getPlugin(ShellFactory::class.java).create(null, authInfo, shellSafety).also {
                 lifecycle = this
             }
         }
     }
 
+    /**
+     * Warms up the flows registered on the node in the background, over the RPC connection of the local shell, so the
+     * first 'flow start' of each doesn't pay for loading its class and preparing its argument parsing. See [FlowWarmUp].
+     */
+    fun warmUpFlows() {
+        val authInfo = localAuthInfo ?: return
+        thread(name = "Shell flow warm-up", isDaemon = true) {
+            try {
+                val rpcOps = authInfo.getOrCreateRpcOps(CordaRPCOps::class.java)
+                // The mapper 'flow start' will use, so the deserializers built here are kept for it.
+                FlowWarmUp(rpcOps, classLoader ?: javaClass.classLoader, authInfo.inputMappers.inputMapper(rpcOps, null)).run()
+            } catch (e: Exception) {
+                log.warn("Flow warm-up failed: ${e.message}")
+            }
+        }
+    }
+
     fun nodeInfo() = try {
         startupValidation.value.nodeInfo()
     } catch (e: UndeclaredThrowableException) {
@@ -269,10 +322,30 @@ object InteractiveShell {
         return outputFormat
     }
 
+    @JvmStatic
+    fun setAcceleratedOutput(acceleratedOutput: Boolean) {
+        this.acceleratedOutput = acceleratedOutput
+    }
+
+    @JvmStatic
+    fun isAcceleratedOutput(): Boolean {
+        return acceleratedOutput
+    }
+
+    @JvmStatic
+    fun setParallelOutput(parallelOutput: Boolean) {
+        this.parallelOutput = parallelOutput
+    }
+
+    @JvmStatic
+    fun isParallelOutput(): Boolean {
+        return parallelOutput
+    }
+
     fun createYamlInputMapper(rpcOps: CordaRPCOps): ObjectMapper {
         // Return a standard Corda Jackson object mapper, configured to use YAML by default and with extra
-        // serializers.
-        return JacksonSupport.createDefaultMapper(rpcOps, YAMLFactory(), true).apply {
+        // serializers. Parties are resolved from a local index of the network map where possible.
+        return JacksonSupport.createDefaultMapper(NetworkMapIndex.resolvingParties(rpcOps), YAMLFactory(), true).apply {
             val rpcModule = SimpleModule().apply {
                 addDeserializer(InputStream::class.java, InputStreamDeserializer)
                 addDeserializer(UniqueIdentifier::class.java, UniqueIdentifierDeserializer)
@@ -281,10 +354,16 @@ object InteractiveShell {
         }
     }
 
-    private fun createOutputMapper(outputFormat: OutputFormat): ObjectMapper {
+    /**
+     * Creates the mapper results are printed with. An [accelerated] mapper generates bytecode to read the properties of the
+     * types it serializes, rather than calling their getters through reflection.
+     */
+    internal fun createOutputMapper(outputFormat: OutputFormat, accelerated: Boolean = false): ObjectMapper {
         val factory = when (outputFormat) {
-            OutputFormat.JSON -> JsonFactory()
+            OutputFormat.JSON, OutputFormat.NDJSON, OutputFormat.CSV, OutputFormat.TSV -> JsonFactory()
             OutputFormat.YAML -> YAMLFactory().disable(YAMLGenerator.Feature.WRITE_DOC_START_MARKER)
+            OutputFormat.CBOR -> CBORFactory()
+            OutputFormat.SMILE -> SmileFactory()
         }
 
         return JacksonSupport.createNonRpcMapper(factory).apply {
@@ -295,15 +374,43 @@ object InteractiveShell {
                 addSerializer(InputStream::class.java, InputStreamSerializer)
             }
             registerModule(rpcModule)
+            if (accelerated) {
+                registerAcceleratedAccessors()
+            }
 
             disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
-            enable(SerializationFeature.INDENT_OUTPUT)
+            if (outputFormat.indented) {
+                enable(SerializationFeature.INDENT_OUTPUT)
+            }
+        }
+    }
+
+    /**
+     * Afterburner already falls back to reflection for the classes and properties it can't generate accessors for, such
+     * as non-public ones, and for the accessors that fail when called. This falls back to a reflective mapper as a whole
+     * when the module can't be set up at all, e.g. when defining classes isn't allowed.
+     */
+    private fun ObjectMapper.registerAcceleratedAccessors() {
+        try {
+            registerModule(AfterburnerModule())
+        } catch (e: Exception) {
+            log.warn("Cannot accelerate the serialization of results, falling back to reflection", e)
+        } catch (e: LinkageError) {
+            log.warn("Cannot accelerate the serialization of results, falling back to reflection", e)
         }
     }
 
     // TODO: A default renderer could be used, instead of an object mapper. See: http://www.crashub.org/1.3/reference.html#_renderers
     private var outputFormat = OutputFormat.YAML
 
+    private var acceleratedOutput = false
+
+    private var parallelOutput = false
+
+    private fun flowNameIndex(rpcOps: CordaRPCOps): FlowNameIndex {
+        return flowNameIndices.get(rpcOps) { FlowNameIndex.forRpcOps(it) }!!
+    }
+
     @VisibleForTesting
     lateinit var latch: CountDownLatch
         private set
@@ -311,7 +418,8 @@ object InteractiveShell {
     /**
      * Called from the 'flow' shell command. Takes a name fragment and finds a matching flow, or prints out
      * the list of options if the request is ambiguous. Then parses [inputData] as constructor arguments using
-     * the [runFlowFromString] method and starts the requested flow. Ctrl-C can be used to cancel.
+     * the [runFlowFromString] method and starts the requested flow. Ctrl-C can be used to cancel. The outcome is
+     * also appended to [resultsFile] if there is one, see [FlowResultSink].
      */
     @JvmStatic
     fun runFlowByNameFragment(
@@ -320,38 +428,21 @@ object InteractiveShell {
         output: RenderPrintWriter,
         rpcOps: CordaRPCOps,
         ansiProgressRenderer: ANSIProgressRenderer,
-        inputObjectMapper: ObjectMapper = createYamlInputMapper(rpcOps)
+        inputObjectMapper: ObjectMapper = createYamlInputMapper(rpcOps),
+        resultsFile: String? = null
     ) {
-        val matches = try {
-            rpcOps.registeredFlows().filter { nameFragment in it }.sortedBy { it.length }
-        } catch (e: PermissionException) {
-            output.println(e.message ?: "Access denied", Decoration.bold, Color.red)
-            return
-        }
-        if (matches.isEmpty()) {
-            output.println("No matching flow found, run 'flow list' to see your options.", Decoration.bold, Color.red)
-            return
-        } else if (matches.size > 1 && matches.find { it.endsWith(nameFragment) } == null) {
-            output.println("Ambiguous name provided, please be more specific. Your options are:")
-            matches.forEachIndexed { i, s -> output.println("${i + 1}. $s", Decoration.bold, Color.yellow) }
-            return
-        }
-
-        val flowName = matches.find { it.endsWith(nameFragment) } ?: matches.single()
-        val flowClazz: Class<FlowLogic<*>> = if (classLoader != null) {
-            uncheckedCast(Class.forName(flowName, true, classLoader))
-        } else {
-            uncheckedCast(Class.forName(flowName))
-        }
+        val flowClazz = resolveFlowClass(nameFragment, output, rpcOps) ?: return
         try {
             // Show the progress tracker on the console until the flow completes or is interrupted with a
             // Ctrl-C keypress.
+            val startedAt = Instant.now()
             val stateObservable = runFlowFromString(
                 { clazz, args -> rpcOps.startTrackedFlowDynamic(clazz, *args) },
                 inputData,
                 flowClazz,
                 inputObjectMapper
             )
+            trackResult(resultsFile, stateObservable, flowClazz.name, startedAt, output)
 
             latch = CountDownLatch(1)
             ansiProgressRenderer.render(stateObservable, latch::countDown)
@@ -383,41 +474,264 @@ object InteractiveShell {
         }
     }
 
-    class NoApplicableConstructor(val errors: List<String>) : CordaException(this.toString()) {
-        override fun toString() =
-            (listOf("No applicable constructor for flow. Problems were:") + errors).joinToString(System.lineSeparator())
+    /**
+     * Called from the 'flow start --no-track' shell command. Like [runFlowByNameFragment], but starts the flow without
+     * a progress tracker subscription and prints its run id as soon as the node has accepted it. If [waitForResult] is
+     * set it then waits for the flow's return value, otherwise the return value is released straight away. Ctrl-C only
+     * stops the wait, the flow carries on running on the node.
+     */
+    @JvmStatic
+    fun runUntrackedFlowByNameFragment(
+        nameFragment: String,
+        inputData: String,
+        output: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        waitForResult: Boolean,
+        inputObjectMapper: ObjectMapper = createYamlInputMapper(rpcOps),
+        resultsFile: String? = null
+    ) {
+        val flowClazz = resolveFlowClass(nameFragment, output, rpcOps) ?: return
+        try {
+            val startedAt = Instant.now()
+            val handle = rpcOps.startFlowDynamic(flowClazz, *parseFlowArguments(inputData, flowClazz, inputObjectMapper))
+            trackResult(resultsFile, handle, flowClazz.name, startedAt, output)
+            output.println("Flow started with id: ${handle.id.uuid}")
+            output.flush()
+            if (!waitForResult) {
+                // The sink still needs the return value.
+                if (resultsFile == null) handle.close()
+                return
+            }
+            try {
+                output.println("Flow completed with result: ${handle.returnValue.get()}")
+            } catch (e: InterruptedException) {
+                if (resultsFile == null) handle.close()
+                output.println("Stopped waiting for flow ${handle.id.uuid}, it is still running on the node.", Decoration.bold, Color.yellow)
+                Thread.currentThread().interrupt()
+            } catch (e: ExecutionException) {
+                output.println("Flow ${handle.id.uuid} failed: ${e.rootCause}", Decoration.bold, Color.red)
+            }
+        } catch (e: NoApplicableConstructor) {
+            output.println("No matching constructor found:", Decoration.bold, Color.red)
+            e.errors.forEach { output.println("- $it", Decoration.bold, Color.red) }
+        } catch (e: PermissionException) {
+            output.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+        } finally {
+            InputStreamDeserializer.closeAll()
+            output.flush()
+        }
     }
 
     /**
-     * Tidies up a possibly generic type name by chopping off the package names of classes in a hard-coded set of
-     * hierarchies that are known to be widely used and recognised, and also not have (m)any ambiguous names in them.
-     *
-     * This is used for printing error messages when something doesn't match.
+     * Called from the 'flow start --background' shell command. Starts the flow with a progress tracker like
+     * [runFlowByNameFragment], but hands the progress over to [backgroundFlows] and returns as soon as the node has
+     * accepted the flow, so several flows can be started and then followed together with [runFlowMonitor].
      */
-    private fun maybeAbbreviateGenericType(type: Type, extraRecognisedPackage: String): String {
-        val packagesToAbbreviate = listOf("java.", "net.corda.core.", "kotlin.", extraRecognisedPackage)
+    @JvmStatic
+    fun runFlowInBackground(
+        nameFragment: String,
+        inputData: String,
+        output: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        backgroundFlows: MultiFlowProgressRenderer,
+        inputObjectMapper: ObjectMapper = createYamlInputMapper(rpcOps),
+        resultsFile: String? = null
+    ) {
+        val flowClazz = resolveFlowClass(nameFragment, output, rpcOps) ?: return
+        try {
+            val startedAt = Instant.now()
+            val handle = runFlowFromString(
+                { clazz, args -> rpcOps.startTrackedFlowDynamic(clazz, *args) },
+                inputData,
+                flowClazz,
+                inputObjectMapper
+            )
+            backgroundFlows.track(handle, flowClazz.name)
+            trackResult(resultsFile, handle, flowClazz.name, startedAt, output)
+            output.println("Flow started in the background with id: ${handle.id.uuid}, run 'flow monitor' to follow it.")
+        } catch (e: NoApplicableConstructor) {
+            output.println("No matching constructor found:", Decoration.bold, Color.red)
+            e.errors.forEach { output.println("- $it", Decoration.bold, Color.red) }
+        } catch (e: PermissionException) {
+            output.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+        } finally {
+            InputStreamDeserializer.closeAll()
+            output.flush()
+        }
+    }
 
-        fun shouldAbbreviate(typeName: String) = packagesToAbbreviate.any { typeName.startsWith(it) }
-        fun abbreviated(typeName: String) = if (shouldAbbreviate(typeName)) typeName.split('.').last() else typeName
+    /**
+     * Called from the 'flow monitor' shell command. Shows the progress of the flows started in the background until they
+     * have all finished, or until Ctrl-C is pressed.
+     */
+    @JvmStatic
+    fun runFlowMonitor(output: RenderPrintWriter, backgroundFlows: MultiFlowProgressRenderer, expanded: List<String>?, expandAll: Boolean) {
+        if (backgroundFlows.isEmpty()) {
+            output.println("No flows have been started in the background, use 'flow start --background' to start one.")
+            return
+        }
+        backgroundFlows.render(output, expanded ?: emptyList(), expandAll)
+    }
 
-        fun innerLoop(type: Type): String = when (type) {
-            is ParameterizedType -> {
-                val args: List<String> = type.actualTypeArguments.map(::innerLoop)
-                abbreviated(type.rawType.typeName) + '<' + args.joinToString(", ") + '>'
-            }
-            is GenericArrayType -> {
-                innerLoop(type.genericComponentType) + "[]"
+    /**
+     * Called from the 'flow start-batch' shell command. Starts the flow matching [nameFragment] once for every line of
+     * [argumentsFile], keeping up to [window] flows in flight. See [FlowBatchRunner] for the file and journal formats.
+     * If a [template] is given, the lines of the file are rows of columns to fill its placeholders from instead. With
+     * [useClientIds] the flows are started with client ids, so a resumed batch reattaches to them rather than starting any
+     * line twice. Lines that failed in an earlier run are only tried again if [retryFailed]. The outcome of every flow
+     * is also appended to [resultsFile] if there is one.
+     */
+    @JvmStatic
+    fun runFlowBatch(
+        nameFragment: String,
+        argumentsFile: String,
+        template: String?,
+        journalFile: String?,
+        window: Int?,
+        useClientIds: Boolean,
+        retryFailed: Boolean,
+        resultsFile: String?,
+        output: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        inputObjectMapper: ObjectMapper
+    ) {
+        val arguments = Paths.get(argumentsFile)
+        if (!Files.isRegularFile(arguments)) {
+            output.println("Cannot read the argument file '$argumentsFile'.", Decoration.bold, Color.red)
+            return
+        }
+        if (window != null && window < 1) {
+            output.println("The in-flight window must be at least 1.", Decoration.bold, Color.red)
+            return
+        }
+        val flowClazz = resolveFlowClass(nameFragment, output, rpcOps) ?: return
+        val argumentTemplate = if (template != null) (parseFlowArgumentTemplate(template, flowClazz, output, inputObjectMapper) ?: return) else null
+        val journal = if (journalFile != null) FlowBatchJournal(Paths.get(journalFile)) else FlowBatchJournal.forArgumentsFile(arguments)
+        val resultSink = resultsFile?.let { FlowResultSink.forFile(it) }
+        try {
+            FlowBatchRunner(
+                rpcOps,
+                flowClazz,
+                arguments,
+                argumentTemplate,
+                journal,
+                window ?: FlowBatchRunner.DEFAULT_WINDOW,
+                useClientIds,
+                retryFailed,
+                resultSink,
+                inputObjectMapper,
+                output
+            ).run()
+        } catch (e: PermissionException) {
+            output.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+        } finally {
+            resultSink?.release(output)
+        }
+    }
+
+    /**
+     * Appends the outcome of the flow behind [handle] to [resultsFile], if there is one, once it's known. The sink keeps
+     * writing after it has been given back, until the outcome of every flow it tracks has been written.
+     */
+    private fun trackResult(resultsFile: String?, handle: FlowHandle<*>, flowClass: String, startedAt: Instant, output: PrintWriter) {
+        val sink = FlowResultSink.forFile(resultsFile ?: return)
+        try {
+            sink.track(handle, flowClass, startedAt)
+        } finally {
+            sink.release(output)
+        }
+    }
+
+    /**
+     * Called from the 'flow load' shell command. Starts the flow matching [nameFragment] at [rate] flows per second for
+     * [durationSeconds], reporting latency percentiles and throughput as it goes. See [FlowLoadGenerator].
+     */
+    @JvmStatic
+    fun runFlowLoad(
+        nameFragment: String,
+        inputData: String,
+        rate: Double,
+        durationSeconds: Long?,
+        reportIntervalSeconds: Long?,
+        threads: Int?,
+        output: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        inputObjectMapper: ObjectMapper
+    ) {
+        if (rate <= 0 || (durationSeconds != null && durationSeconds < 1) || (reportIntervalSeconds != null && reportIntervalSeconds < 1) ||
+                (threads != null && threads < 1)) {
+            output.println("The rate, duration, report interval and thread count must all be positive.", Decoration.bold, Color.red)
+            return
+        }
+        val flowClazz = resolveFlowClass(nameFragment, output, rpcOps) ?: return
+        val template = parseFlowArgumentTemplate(inputData, flowClazz, output, inputObjectMapper) ?: return
+        FlowLoadGenerator(
+            rpcOps,
+            template,
+            rate,
+            durationSeconds ?: FlowLoadGenerator.DEFAULT_DURATION_SECONDS,
+            reportIntervalSeconds ?: FlowLoadGenerator.DEFAULT_REPORT_INTERVAL_SECONDS,
+            threads ?: FlowLoadGenerator.DEFAULT_THREADS,
+            output
+        ).run()
+    }
+
+    /**
+     * Parses [inputData] into a [FlowArgumentTemplate] for [flowClazz]. If that fails the reason is printed to [output]
+     * and null is returned.
+     */
+    private fun parseFlowArgumentTemplate(
+        inputData: String,
+        flowClazz: Class<out FlowLogic<*>>,
+        output: RenderPrintWriter,
+        om: ObjectMapper
+    ): FlowArgumentTemplate? {
+        return try {
+            FlowArgumentTemplate.parse(inputData, flowClazz, om)
+        } catch (e: NoApplicableConstructor) {
+            output.println("No matching constructor found:", Decoration.bold, Color.red)
+            e.errors.forEach { output.println("- $it", Decoration.bold, Color.red) }
+            null
+        } catch (e: IllegalArgumentException) {
+            output.println(e.message ?: e.toString(), Decoration.bold, Color.red)
+            null
+        }
+    }
+
+    /**
+     * Finds the flow matching [nameFragment] and loads its class, using the CorDapps class loader if there is one. If the
+     * fragment doesn't identify a single flow the reason is printed to [output] and null is returned.
+     */
+    internal fun resolveFlowClass(nameFragment: String, output: RenderPrintWriter, rpcOps: CordaRPCOps): Class<FlowLogic<*>>? {
+        val resolution = try {
+            flowNameIndex(rpcOps).resolve(nameFragment)
+        } catch (e: PermissionException) {
+            output.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+            return null
+        }
+        val flowName = when (resolution) {
+            is FlowNameIndex.Resolution.NoMatch -> {
+                output.println("No matching flow found, run 'flow list' to see your options.", Decoration.bold, Color.red)
+                return null
             }
-            is Class<*> -> {
-                if (type.isArray)
-                    abbreviated(type.simpleName)
-                else
-                    abbreviated(type.name).replace('$', '.')
+            is FlowNameIndex.Resolution.Ambiguous -> {
+                output.println("Ambiguous name provided, please be more specific. Your options are:")
+                resolution.options.forEachIndexed { i, s -> output.println("${i + 1}. $s", Decoration.bold, Color.yellow) }
+                return null
             }
-            else -> type.toString()
+            is FlowNameIndex.Resolution.Match -> resolution.flowName
+        }
+
+        return if (classLoader != null) {
+            uncheckedCast(Class.forName(flowName, true, classLoader))
+        } else {
+            uncheckedCast(Class.forName(flowName))
         }
+    }
 
-        return innerLoop(type)
+    class NoApplicableConstructor(val errors: List<String>) : CordaException(this.toString()) {
+        override fun toString() =
+            (listOf("No applicable constructor for flow. Problems were:") + errors).joinToString(System.lineSeparator())
     }
 
     @JvmStatic
@@ -470,62 +784,19 @@ object InteractiveShell {
         clazz: Class<out FlowLogic<T>>,
         om: ObjectMapper
     ): FlowProgressHandle<T> {
-
-        val errors = ArrayList<String>()
-        val parser = StringToMethodCallParser(clazz, om)
-        val nameTypeList = getMatchingConstructorParamsAndTypes(parser, inputData, clazz)
-
-        try {
-            val args = parser.parseArguments(clazz.name, nameTypeList, inputData)
-            return invoke(clazz, args)
-        } catch (e: StringToMethodCallParser.UnparseableCallException.ReflectionDataMissing) {
-            val argTypes = nameTypeList.map { (_, type) -> type }
-            errors.add("$argTypes: <constructor missing parameter reflection data>")
-        } catch (e: StringToMethodCallParser.UnparseableCallException) {
-            val argTypes = nameTypeList.map { (_, type) -> type }
-            errors.add("$argTypes: ${e.message}")
-        }
-        throw NoApplicableConstructor(errors)
+        return invoke(clazz, parseFlowArguments(inputData, clazz, om))
     }
 
-    private fun <T> getMatchingConstructorParamsAndTypes(
-        parser: StringToMethodCallParser<FlowLogic<T>>,
-        inputData: String,
-        clazz: Class<out FlowLogic<T>>
-    ): List<Pair<String, Type>> {
-        val errors = ArrayList<String>()
-        val classPackage = clazz.packageName_
-        lateinit var paramNamesFromConstructor: List<String>
-
-        for (ctor in clazz.constructors) {                // Attempt construction with the given arguments.
-
-            fun getPrototype(): List<String> {
-                val argTypes = ctor.genericParameterTypes.map {
-                    // If the type name is in the net.corda.core or java namespaces, chop off the package name
-                    // because these hierarchies don't have (m)any ambiguous names and the extra detail is just noise.
-                    maybeAbbreviateGenericType(it, classPackage)
-                }
-                return paramNamesFromConstructor.zip(argTypes).map { (name, type) -> "$name: $type" }
-            }
-
-            try {
-                paramNamesFromConstructor = parser.paramNamesFromConstructor(ctor)
-                val nameTypeList = paramNamesFromConstructor.zip(ctor.genericParameterTypes)
-                parser.validateIsMatchingCtor(clazz.name, nameTypeList, inputData)
-                return nameTypeList
-            } catch (e: StringToMethodCallParser.UnparseableCallException.MissingParameter) {
-                errors.add("${getPrototype()}: missing parameter ${e.paramName}")
-            } catch (e: StringToMethodCallParser.UnparseableCallException.TooManyParameters) {
-                errors.add("${getPrototype()}: too many parameters")
-            } catch (e: StringToMethodCallParser.UnparseableCallException.ReflectionDataMissing) {
-                val argTypes = ctor.genericParameterTypes.map { it.typeName }
-                errors.add("$argTypes: <constructor missing parameter reflection data>")
-            } catch (e: StringToMethodCallParser.UnparseableCallException) {
-                val argTypes = ctor.genericParameterTypes.map { it.typeName }
-                errors.add("$argTypes: ${e.message}")
-            }
-        }
-        throw NoApplicableConstructor(errors)
+    /**
+     * Parses [inputData] as the arguments of the applicable constructor of [clazz], in the same way as [runFlowFromString].
+     * Recently parsed arguments are remembered per flow class, but deserialized afresh every time, see
+     * [FlowArgumentTemplate.cachedArguments].
+     *
+     * @throws NoApplicableConstructor if no constructor could be found for the given set of types.
+     */
+    @Throws(NoApplicableConstructor::class)
+    internal fun <T> parseFlowArguments(inputData: String, clazz: Class<out FlowLogic<T>>, om: ObjectMapper): Array<out Any?> {
+        return FlowArgumentTemplate.cachedArguments(inputData, clazz, om)
     }
 
     // TODO Filtering on error/success when we will have some sort of flow auditing, for now it doesn't make much sense.
@@ -575,10 +846,207 @@ object InteractiveShell {
         rpcOps.debugCheckpoints()
     }
 
+    /**
+     * Called from the 'vault query' shell command. Prints or writes to [outputFile] all the states of [stateType]
+     * matching [criteria], which uses the same syntax as the parameters of 'run', requesting them a page at a time and
+     * printing each page as it arrives. See [VaultQueryStreamer].
+     */
+    @JvmStatic
+    fun runVaultQuery(
+        stateType: String?,
+        status: String?,
+        criteria: String,
+        pageSize: Int?,
+        prefetch: Int?,
+        outputFile: String?,
+        columns: String?,
+        fields: String?,
+        out: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        inputObjectMapper: ObjectMapper
+    ) {
+        if (outputFormat.binary && outputFile == null) {
+            out.println(
+                "The ${outputFormat.name.toLowerCase()} output format can only be written to a file, " +
+                        "please use 'vault query --output-file <file> ...' or choose another format with 'output-format set'.",
+                Decoration.bold,
+                Color.red
+            )
+            return
+        }
+        val streamer = vaultQueryStreamer(stateType, status, criteria, pageSize, prefetch, out, rpcOps, inputObjectMapper) ?: return
+        val columnList = columns?.let { FieldProjection.parsePaths(it) }
+        val fieldList = fields?.let { FieldProjection.parsePaths(it) }
+        val printer = try {
+            if (outputFile != null) {
+                OutputFilePrinter(Paths.get(outputFile), outputFormat, columnList, fieldList)
+            } else {
+                OutputPrinter.forFormat(outputFormat, columnList, fieldList)
+            }
+        } catch (e: FileAlreadyExistsException) {
+            printFileExists(outputFile, out)
+            return
+        }
+        try {
+            val count = printer.openSequence(out).use { states ->
+                streamer.run { page ->
+                    states.print(page.states)
+                    out.flush()
+                }
+            }
+            if (printer is OutputFilePrinter) {
+                out.println("Wrote $count states to $outputFile")
+            }
+        } catch (e: InterruptedException) {
+            out.println("Stopped, the rest of the states have not been printed.", Decoration.bold, Color.yellow)
+        } catch (e: PermissionException) {
+            out.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+        } catch (e: Exception) {
+            out.println("RPC failed: ${e.rootCause}", Decoration.bold, Color.red)
+        } finally {
+            (printer as? OutputFilePrinter)?.close()
+        }
+    }
+
+    /**
+     * Called from the 'vault export' shell command. Writes all the states of [stateType] matching [criteria] to [file]
+     * as gzip compressed newline delimited JSON, whatever the output format, along with a manifest recording how many
+     * there were, the query and the checksum of the file. See [VaultExporter].
+     */
+    @JvmStatic
+    fun runVaultExport(
+        stateType: String?,
+        status: String?,
+        criteria: String,
+        pageSize: Int?,
+        prefetch: Int?,
+        file: String,
+        fields: String?,
+        out: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        inputObjectMapper: ObjectMapper
+    ) {
+        val streamer = vaultQueryStreamer(stateType, status, criteria, pageSize, prefetch, out, rpcOps, inputObjectMapper) ?: return
+        val path = Paths.get(file)
+        val manifestPath = VaultExportManifest.pathFor(path)
+        // The manifest is reserved before exporting, so that its name can't be taken while the export runs.
+        try {
+            Files.createFile(manifestPath)
+        } catch (e: FileAlreadyExistsException) {
+            printFileExists(manifestPath.toString(), out)
+            return
+        } catch (e: IOException) {
+            out.println("Cannot write to $manifestPath: ${e.message}", Decoration.bold, Color.red)
+            return
+        }
+        val writer = ObjectMapperCache.outputWriter(OutputFormat.NDJSON, fields?.let { FieldProjection.parsePaths(it) })
+        var manifestWritten = false
+        try {
+            VaultExporter(path, writer).use { exporter ->
+                streamer.run { page ->
+                    exporter.export(page.states)
+                }
+                val count = exporter.finish()
+                val manifest = VaultExportManifest(
+                    file = path.fileName.toString(),
+                    format = "ndjson",
+                    compression = "gzip",
+                    states = count,
+                    stateType = stateType ?: ContractState::class.java.name,
+                    status = (streamer.criteria as QueryCriteria.VaultQueryCriteria).status.name,
+                    criteria = criteria,
+                    sha256 = exporter.checksum,
+                    exportedAt = Instant.now().toString()
+                )
+                try {
+                    manifest.write(manifestPath)
+                    manifestWritten = true
+                } catch (e: IOException) {
+                    out.println("Exported $count states to $file, but the export has no manifest, writing $manifestPath failed: ${e.message}",
+                        Decoration.bold, Color.yellow)
+                    return
+                }
+                out.println("Exported $count states to $file, see $manifestPath")
+            }
+        } catch (e: InterruptedException) {
+            out.println("Stopped, the export has been deleted.", Decoration.bold, Color.yellow)
+        } catch (e: PermissionException) {
+            out.println(e.message ?: "Access denied", Decoration.bold, Color.red)
+        } catch (e: FileAlreadyExistsException) {
+            printFileExists(e.file, out)
+        } catch (e: IOException) {
+            out.println("Cannot export to $file: ${e.message}", Decoration.bold, Color.red)
+        } catch (e: Exception) {
+            out.println("RPC failed: ${e.rootCause}", Decoration.bold, Color.red)
+        } finally {
+            if (!manifestWritten) Files.deleteIfExists(manifestPath)
+        }
+    }
+
+    /**
+     * The [VaultQueryStreamer] for the options of the 'vault' shell commands, or null if one of them is wrong, in which
+     * case the reason has been printed to [out].
+     */
+    private fun vaultQueryStreamer(
+        stateType: String?,
+        status: String?,
+        criteria: String,
+        pageSize: Int?,
+        prefetch: Int?,
+        out: RenderPrintWriter,
+        rpcOps: CordaRPCOps,
+        inputObjectMapper: ObjectMapper
+    ): VaultQueryStreamer? {
+        if (pageSize != null && pageSize < 1) {
+            out.println("The page size must be at least 1.", Decoration.bold, Color.red)
+            return null
+        }
+        if (prefetch != null && prefetch < 0) {
+            out.println("The number of pages to prefetch can't be negative.", Decoration.bold, Color.red)
+            return null
+        }
+        val contractStateType = try {
+            stateType?.let { inputObjectMapper.typeFactory.findClass(it) } ?: ContractState::class.java
+        } catch (e: ClassNotFoundException) {
+            out.println("No such state class: $stateType", Decoration.bold, Color.red)
+            return null
+        }
+        if (!ContractState::class.java.isAssignableFrom(contractStateType)) {
+            out.println("$stateType is not a ContractState.", Decoration.bold, Color.red)
+            return null
+        }
+        val stateStatus = try {
+            status?.let { Vault.StateStatus.valueOf(it.toUpperCase()) }
+        } catch (e: IllegalArgumentException) {
+            out.println("The status can only be UNCONSUMED, CONSUMED or ALL: $status", Decoration.bold, Color.red)
+            return null
+        }
+        val queryCriteria = try {
+            val parsed = if (criteria.isBlank()) {
+                QueryCriteria.VaultQueryCriteria()
+            } else {
+                inputObjectMapper.readValue("{ $criteria }", QueryCriteria.VaultQueryCriteria::class.java)
+            }
+            if (stateStatus != null) parsed.withStatus(stateStatus) else parsed
+        } catch (e: JsonProcessingException) {
+            out.println("Cannot parse the query criteria: ${e.originalMessage}", Decoration.bold, Color.red)
+            return null
+        }
+        return VaultQueryStreamer(
+            rpcOps,
+            uncheckedCast(contractStateType),
+            queryCriteria,
+            pageSize ?: VaultQueryStreamer.DEFAULT_PAGE_SIZE,
+            prefetch ?: VaultQueryStreamer.DEFAULT_PREFETCH
+        )
+    }
+
     @JvmStatic
     fun runRPCFromString(
         input: List<String>, out: RenderPrintWriter, context: InvocationContext<out Any>, cordaRPCOps: CordaRPCOps,
-        inputObjectMapper: ObjectMapper
+        inputObjectMapper: ObjectMapper, outputFile: String? = null, columns: String? = null, fields: String? = null,
+        paged: Boolean = false, fresh: Boolean = false,
+        rpcParser: StringToMethodCallParser<CordaRPCOps> = StringToMethodCallParser(CordaRPCOps::class.java, inputObjectMapper)
     ): Any? {
         val cmd = input.joinToString(" ").trim { it <= ' ' }
         if (cmd.startsWith("startflow", ignoreCase = true)) {
@@ -593,19 +1061,45 @@ object InteractiveShell {
             return null
         } else if (cmd.substringAfter(" ").trim().equals("gracefulShutdown", ignoreCase = true)) {
             return gracefulShutdown(out, cordaRPCOps)
+        } else if (outputFormat.binary && outputFile == null) {
+            out.println(
+                "The ${outputFormat.name.toLowerCase()} output format can only be written to a file, " +
+                        "please use 'run --output-file <file> ...' or choose another format with 'output-format set'.",
+                Decoration.bold,
+                Color.red
+            )
+            return null
         }
 
+        val columnList = columns?.let { FieldProjection.parsePaths(it) }
+        val fieldList = fields?.let { FieldProjection.parsePaths(it) }
+        // The file is created before the call is made, so the call isn't made if the file can't be written.
+        val filePrinter = try {
+            outputFile?.let { OutputFilePrinter(Paths.get(it), outputFormat, columnList, fieldList) }
+        } catch (e: FileAlreadyExistsException) {
+            printFileExists(outputFile, out)
+            return null
+        } catch (e: IOException) {
+            out.println("Cannot write to $outputFile: ${e.message}", Decoration.bold, Color.red)
+            return null
+        }
         var result: Any? = null
+        var succeeded = false
         try {
             InputStreamSerializer.invokeContext = context
-            val parser = StringToMethodCallParser(CordaRPCOps::class.java, inputObjectMapper)
-            val call = parser.parse(cordaRPCOps, cmd)
-            result = call.call()
+            val call = rpcParser.parse(cordaRPCOps, cmd)
+            result = if (fresh) CachingRPCOps.fresh { call.call() } else call.call()
             var subscription: Subscriber<*>? = null
             if (result != null && result !== Unit && result !is Void) {
-                val (subs, future) = printAndFollowRPCResponse(result, out, outputFormat)
-                subscription = subs
-                result = future
+                val printer = filePrinter ?: OutputPrinter.forFormat(outputFormat, columnList, fieldList)
+                if (paged && filePrinter == null) {
+                    showPaged(result, printer, out, context)
+                    result = null
+                } else {
+                    val (subs, future) = maybeFollow(result, printer, out)
+                    subscription = subs
+                    result = future
+                }
             }
             if (result is Future<*>) {
                 if (!result.isDone) {
@@ -623,6 +1117,7 @@ object InteractiveShell {
                     throw e.rootCause
                 }
             }
+            succeeded = true
             if (isShutdownMethodName(cmd)) {
                 out.println("Called 'shutdown' on the node.\nQuitting the shell now.").also { out.flush() }
                 onExit.invoke()
@@ -637,10 +1132,33 @@ object InteractiveShell {
         } finally {
             InputStreamSerializer.invokeContext = null
             InputStreamDeserializer.closeAll()
+            if (filePrinter != null) {
+                if (succeeded) out.println("Wrote ${filePrinter.finish()} value(s) to $outputFile") else filePrinter.abandon()
+            }
         }
         return result
     }
 
+    private fun printFileExists(file: String?, out: RenderPrintWriter) {
+        out.println("$file already exists, the shell doesn't overwrite files. Remove it first or choose another file.", Decoration.bold, Color.red)
+    }
+
+    /**
+     * Prints a file written in one of the binary output formats by 'run --output-file', using the current output format,
+     * or YAML if that is a binary one too.
+     */
+    @JvmStatic
+    fun runDecodeOutputFile(file: String, out: RenderPrintWriter) {
+        val printer = OutputPrinter.forFormat(if (outputFormat.binary) OutputFormat.YAML else outputFormat)
+        try {
+            OutputFilePrinter.decode(Paths.get(file), printer, out)
+        } catch (e: NoSuchFileException) {
+            out.println("No such file: $file", Decoration.bold, Color.red)
+        } catch (e: IOException) {
+            out.println("Cannot decode $file: ${e.message}", Decoration.bold, Color.red)
+        }
+    }
+
     @JvmStatic
     fun gracefulShutdown(userSessionOut: RenderPrintWriter, cordaRPCOps: CordaRPCOps): Int {
 
@@ -702,19 +1220,32 @@ object InteractiveShell {
         return result;
     }
 
-    private fun printAndFollowRPCResponse(
-        response: Any?,
-        out: PrintWriter,
-        outputFormat: OutputFormat
-    ): Pair<PrintingSubscriber?, CordaFuture<Unit>> {
-        val outputMapper = createOutputMapper(outputFormat)
-
-        val mapElement: (Any?) -> String = { element -> outputMapper.writerWithDefaultPrettyPrinter().writeValueAsString(element) }
-        return maybeFollow(response, mapElement, out)
+    /** Shows [response] in a [Pager], following it until it completes or the pager is closed. */
+    private fun showPaged(response: Any, printer: OutputPrinter, out: RenderPrintWriter, context: InvocationContext<*>) {
+        // Updates arrive on the RPC thread, which mustn't wait for the operator to page through them.
+        Pager(context, out).follow { target, updates ->
+            maybeFollow(response, printer, target, updates).second
+        }
     }
 
-    private class PrintingSubscriber(private val printerFun: (Any?) -> String, private val toStream: PrintWriter) : Subscriber<Any>() {
+    /**
+     * Prints what an observable emits. A subscriber that [holdsBack] keeps what arrives, up to [MAX_HELD_BACK] values,
+     * until it's [release]d, so it can subscribe to the updates of a feed while the snapshot is still being printed.
+     */
+    private class PrintingSubscriber(
+        private val printer: OutputPrinter,
+        private val toStream: PrintWriter,
+        private val beforePrinting: (Any?) -> Unit = {},
+        holdsBack: Boolean = false
+    ) : Subscriber<Any>() {
+        companion object {
+            const val MAX_HELD_BACK = 10_000
+        }
+
         private var count = 0
+        private var heldBack: MutableList<Any?>? = if (holdsBack) ArrayList() else null
+        private var droppedWhileHeldBack = 0
+        private var onRelease: (() -> Unit)? = null
         val future = openFuture<Unit>()
 
         init {
@@ -725,29 +1256,63 @@ object InteractiveShell {
 
         @Synchronized
         override fun onCompleted() {
-            toStream.println("Observable has completed")
-            future.set(Unit)
+            whenReleased {
+                printer.printCompleted(toStream)
+                future.set(Unit)
+            }
         }
 
         @Synchronized
         override fun onNext(t: Any?) {
-            count++
-            toStream.println("Observation $count: " + printerFun(t))
-            toStream.flush()
+            beforePrinting(t)
+            val held = heldBack
+            when {
+                held == null -> print(t)
+                held.size < MAX_HELD_BACK -> held += t
+                else -> droppedWhileHeldBack++
+            }
         }
 
         @Synchronized
         override fun onError(e: Throwable) {
-            toStream.println("Observable completed with an error")
-            e.printStackTrace(toStream)
-            future.setException(e)
+            whenReleased {
+                toStream.println("Observable completed with an error")
+                e.printStackTrace(toStream)
+                future.setException(e)
+            }
+        }
+
+        /** Prints what has been held back, and from then on prints what arrives straight away. */
+        @Synchronized
+        fun release() {
+            val held = heldBack ?: return
+            heldBack = null
+            held.forEach { print(it) }
+            if (droppedWhileHeldBack > 0) {
+                log.warn("Dropped $droppedWhileHeldBack updates that arrived while the snapshot was being printed")
+                printer.printNotice("($droppedWhileHeldBack more updates arrived while the snapshot was being printed, and were dropped)", toStream)
+                toStream.flush()
+            }
+            onRelease?.invoke()
+        }
+
+        private fun whenReleased(action: () -> Unit) {
+            if (heldBack == null) action() else onRelease = action
+        }
+
+        private fun print(t: Any?) {
+            count++
+            printer.printObservation(count, t, toStream)
+            toStream.flush()
         }
     }
 
+    /** Prints [response], and follows it if it's an observable or data feed, printing what it emits to [updatesOut]. */
     private fun maybeFollow(
         response: Any?,
-        printerFun: (Any?) -> String,
-        out: PrintWriter
+        printer: OutputPrinter,
+        out: PrintWriter,
+        updatesOut: PrintWriter = out
     ): Pair<PrintingSubscriber?, CordaFuture<Unit>> {
         // Match on a couple of common patterns for "important" observables. It's tough to do this in a generic
         // way because observables can be embedded anywhere in the object graph, and can emit other arbitrary
@@ -758,25 +1323,31 @@ object InteractiveShell {
 
         when {
             response is DataFeed<*, *> -> {
-                out.println("Snapshot:")
-                out.println(printerFun(response.snapshot))
-                out.flush()
-                out.println("Updates:")
-
-                val unsubscribeAndPrint: (Any?) -> String = { resp ->
+                val unsubscribeProgress: (Any?) -> Unit = { resp ->
                     if (resp is StateMachineUpdate.Added) {
                         resp.stateMachineInfo.progressTrackerStepAndUpdates?.updates?.notUsed()
                     }
-                    printerFun(resp)
                 }
 
-                result = printNextElements(response.updates, unsubscribeAndPrint, out)
+                // Follow the updates straight away, rather than once the snapshot has been printed, holding them back
+                // until then.
+                val subscriber = PrintingSubscriber(printer, updatesOut, unsubscribeProgress, holdsBack = true)
+                uncheckedCast(response.updates).subscribe(subscriber)
+                try {
+                    printer.printSnapshot(response.snapshot, out)
+                    out.flush()
+                } catch (e: Exception) {
+                    subscriber.unsubscribe()
+                    throw e
+                }
+                subscriber.release()
+                result = Pair(subscriber, subscriber.future)
             }
             response is Observable<*> -> {
-                result = printNextElements(response, printerFun, out)
+                result = printNextElements(response, printer, updatesOut)
             }
             response != null -> {
-                out.println(printerFun(response))
+                printer.print(response, out)
             }
         }
         return result
@@ -784,10 +1355,11 @@ object InteractiveShell {
 
     private fun printNextElements(
         elements: Observable<*>,
-        printerFun: (Any?) -> String,
-        out: PrintWriter
+        printer: OutputPrinter,
+        out: PrintWriter,
+        beforePrinting: (Any?) -> Unit = {}
     ): Pair<PrintingSubscriber?, CordaFuture<Unit>> {
-        val subscriber = PrintingSubscriber(printerFun, out)
+        val subscriber = PrintingSubscriber(printer, out, beforePrinting)
         uncheckedCast(elements).subscribe(subscriber)
         return Pair(subscriber, subscriber.future)
     }
@@ -20,5 +20,9 @@ internal abstract class InteractiveShellCommand<T : RPCOps> : BaseCommand() {
 
     fun ansiProgressRenderer() = ((context.session as CRaSHSession).authInfo as CordaSSHAuthInfo).ansiProgressRenderer
 
+    fun backgroundFlows() = ((context.session as CRaSHSession).authInfo as CordaSSHAuthInfo).backgroundFlows
+
+    fun inputMappers() = ((context.session as CRaSHSession).authInfo as CordaSSHAuthInfo).inputMappers
+
     fun isSsh() = ((context.session as CRaSHSession).authInfo as CordaSSHAuthInfo).isSsh
 }
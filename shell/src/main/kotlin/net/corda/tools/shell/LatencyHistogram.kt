@@ -0,0 +1,84 @@
+package net.corda.tools.shell
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free latency histogram with log-linear buckets in the style of HdrHistogram: values are recorded exactly up to
+ * 127, and beyond that with 64 sub-buckets per power of two, which keeps every reported value within 1.6% of the
+ * recorded one whatever its magnitude.
+ *
+ * Values are plain longs, the load generator records microseconds.
+ */
+internal class LatencyHistogram {
+    companion object {
+        private const val SUB_BUCKET_BITS = 7
+        private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        private const val SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2
+        private const val BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF
+
+        private fun indexOf(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) return value.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1)
+            return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + ((value ushr shift) - SUB_BUCKET_HALF).toInt()
+        }
+
+        /** The highest value that is recorded in the same bucket as the values at [index]. */
+        private fun highestEquivalentValue(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT) return index.toLong()
+            val shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1
+            val subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF
+            return ((subBucket + 1).toLong() shl shift) - 1
+        }
+    }
+
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+
+    fun record(value: Long) {
+        counts.incrementAndGet(indexOf(maxOf(value, 0L)))
+    }
+
+    /** Returns a copy of this histogram and clears it, for reporting on an interval at a time. */
+    fun snapshotAndReset(): LatencyHistogram {
+        val copy = LatencyHistogram()
+        for (i in 0 until BUCKET_COUNT) {
+            val count = counts.getAndSet(i, 0)
+            if (count != 0L) copy.counts.set(i, count)
+        }
+        return copy
+    }
+
+    fun add(other: LatencyHistogram) {
+        for (i in 0 until BUCKET_COUNT) {
+            val count = other.counts.get(i)
+            if (count != 0L) counts.addAndGet(i, count)
+        }
+    }
+
+    val totalCount: Long
+        get() {
+            var total = 0L
+            for (i in 0 until BUCKET_COUNT) total += counts.get(i)
+            return total
+        }
+
+    /** The value at or below which [percentile] percent of the recorded values fall, or 0 if nothing was recorded. */
+    fun valueAtPercentile(percentile: Double): Long {
+        val total = totalCount
+        if (total == 0L) return 0
+        val target = maxOf(1L, Math.ceil(percentile / 100.0 * total).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += counts.get(i)
+            if (seen >= target) return highestEquivalentValue(i)
+        }
+        return maxValue
+    }
+
+    val maxValue: Long
+        get() {
+            for (i in BUCKET_COUNT - 1 downTo 0) {
+                if (counts.get(i) != 0L) return highestEquivalentValue(i)
+            }
+            return 0
+        }
+}
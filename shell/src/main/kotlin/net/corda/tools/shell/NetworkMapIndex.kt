@@ -0,0 +1,144 @@
+package net.corda.tools.shell
+
+import net.corda.core.identity.AbstractParty
+import net.corda.core.identity.CordaX500Name
+import net.corda.core.identity.Party
+import net.corda.core.internal.utilities.InvocationHandlerTemplate
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.node.NodeInfo
+import net.corda.core.node.services.NetworkMapCache
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.security.PublicKey
+
+/**
+ * A local index over the identities in the network map, by X.500 name, by each of the components of the name and by
+ * owning key, so that the parties named in the arguments of flows and RPCs can be resolved without a round trip each.
+ *
+ * Each session's [CachingRPCOps] owns an index, and keeps it current from the network map feed it follows anyway, see
+ * [reset], [update] and [clear]. The feed is followed on the first lookup, through [follow]. Until it has been, or if it
+ * can't be, for instance because the user may not, every lookup goes to the node.
+ *
+ * The node also knows the identities it has only seen in transactions, so anything the index doesn't know is looked
+ * up over RPC rather than reported missing, see [resolvingParties].
+ */
+internal class NetworkMapIndex(private val follow: () -> Unit) {
+    companion object {
+        /**
+         * [rpcOps], with the identity lookups the Jackson input mappers make answered from the index of its network map
+         * when it knows the answer. Connections that aren't cached have no index, and are returned as they are.
+         */
+        fun resolvingParties(rpcOps: CordaRPCOps): CordaRPCOps {
+            val index = CachingRPCOps.networkMapIndexOf(rpcOps) ?: return rpcOps
+            return Proxy.newProxyInstance(
+                CordaRPCOps::class.java.classLoader,
+                arrayOf(CordaRPCOps::class.java),
+                IndexedLookups(rpcOps, index)
+            ) as CordaRPCOps
+        }
+    }
+
+    /** An immutable view of the network map, rebuilt whenever it changes. */
+    private class Snapshot(nodes: Set<NodeInfo>) {
+        val byName = HashMap<CordaX500Name, Party>()
+        val byKey = HashMap<PublicKey, Party>()
+        val byNameComponent = HashMap<String, MutableSet<Party>>()
+        val nodeByParty = HashMap<Party, NodeInfo>()
+
+        init {
+            for (node in nodes) {
+                for (party in node.legalIdentities) {
+                    byName[party.name] = party
+                    byKey[party.owningKey] = party
+                    nameComponents(party.name).forEach { byNameComponent.getOrPut(it) { LinkedHashSet() } += party }
+                    nodeByParty.putIfAbsent(party, node)
+                }
+            }
+        }
+    }
+
+    private val lock = Any()
+    private var nodes: MutableSet<NodeInfo>? = null
+    @Volatile
+    private var snapshot: Snapshot? = null
+
+    /** Starts the index over from the snapshot of a network map feed. */
+    fun reset(nodes: Collection<NodeInfo>) {
+        synchronized(lock) {
+            val following = LinkedHashSet(nodes)
+            this.nodes = following
+            snapshot = Snapshot(following.toSet())
+        }
+    }
+
+    /** Applies a change reported by the feed the index was [reset] from. */
+    fun update(change: NetworkMapCache.MapChange) {
+        synchronized(lock) {
+            val following = nodes ?: return
+            when (change) {
+                is NetworkMapCache.MapChange.Added -> following += change.node
+                is NetworkMapCache.MapChange.Removed -> following -= change.node
+                is NetworkMapCache.MapChange.Modified -> {
+                    following -= change.previousNode
+                    following += change.node
+                }
+            }
+            snapshot = Snapshot(following.toSet())
+        }
+    }
+
+    /** Empties the index once its feed has ended, until it's [reset] from another. */
+    fun clear() {
+        synchronized(lock) {
+            nodes = null
+            snapshot = null
+        }
+    }
+
+    fun wellKnownPartyFromX500Name(name: CordaX500Name): Party? = current()?.byName?.get(name)
+
+    fun partyFromKey(key: PublicKey): Party? = current()?.byKey?.get(key)
+
+    /**
+     * The parties with a component of their name equal to [query], or containing it ignoring case unless [exactMatch],
+     * as the node matches them.
+     */
+    fun partiesFromName(query: String, exactMatch: Boolean): Set<Party> {
+        val snapshot = current() ?: return emptySet()
+        if (exactMatch) {
+            return snapshot.byNameComponent[query] ?: emptySet()
+        }
+        return snapshot.byNameComponent.entries
+            .filter { it.key.contains(query, ignoreCase = true) }
+            .flatMapTo(LinkedHashSet()) { it.value }
+    }
+
+    fun nodeInfoFromParty(party: AbstractParty): NodeInfo? = (party as? Party)?.let { current()?.nodeByParty?.get(it) }
+
+    private fun current(): Snapshot? {
+        snapshot?.let { return it }
+        follow()
+        return snapshot
+    }
+
+    /** Answers the lookups the index knows the answer to, and passes everything else on to [delegate]. */
+    private class IndexedLookups(override val delegate: CordaRPCOps, private val index: NetworkMapIndex) : InvocationHandlerTemplate {
+        override fun invoke(proxy: Any, method: Method, arguments: Array<out Any?>?): Any? {
+            val found: Any? = when (method.name) {
+                "wellKnownPartyFromX500Name" -> index.wellKnownPartyFromX500Name(arguments!![0] as CordaX500Name)
+                "partyFromKey" -> index.partyFromKey(arguments!![0] as PublicKey)
+                // The node may know more parties by that name than the network map holds, so only a match that is
+                // ambiguous already is sure to be ambiguous on the node too.
+                "partiesFromName" -> index.partiesFromName(arguments!![0] as String, arguments[1] as Boolean).takeIf { it.size > 1 }
+                "nodeInfoFromParty" -> index.nodeInfoFromParty(arguments!![0] as AbstractParty)
+                else -> null
+            }
+            return found ?: super.invoke(proxy, method, arguments)
+        }
+    }
+}
+
+/** The components of [name] that [CordaRPCOps.partiesFromName] matches queries against. */
+private fun nameComponents(name: CordaX500Name): List<String> {
+    return listOfNotNull(name.commonName, name.organisationUnit, name.organisation, name.locality, name.state, name.country)
+}
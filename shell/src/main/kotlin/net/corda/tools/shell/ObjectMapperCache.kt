@@ -0,0 +1,98 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.type.TypeFactory
+import net.corda.client.jackson.StringToMethodCallParser
+import net.corda.core.messaging.CordaRPCOps
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Keeps the Jackson mappers and writers the shell commands use, so that the serializers and deserializers Jackson builds
+ * and caches inside them survive from one command to the next.
+ *
+ * Input mappers look parties up over RPC, so they belong to the session whose connection they use, see [SessionMappers].
+ * Output writers don't depend on the connection and are kept per output format.
+ */
+internal object ObjectMapperCache {
+    /**
+     * The input mappers of one session, per class loader the types are resolved with, and the parsers for 'run' built on
+     * them. They're rebuilt after the connection to the node has been re-established, see [connectionReestablished], and
+     * dropped with the session, see [CordaSSHAuthInfo.cleanUp].
+     */
+    class SessionMappers {
+        private class Mappers(val generation: Int, val mapper: ObjectMapper) {
+            /** Reflects over every method of [CordaRPCOps] when it's built, so only when 'run' is first used. */
+            val rpcParser by lazy { StringToMethodCallParser(CordaRPCOps::class.java, mapper) }
+        }
+
+        private val byClassLoader = ConcurrentHashMap<Any, Mappers>()
+
+        fun inputMapper(rpcOps: CordaRPCOps, classLoader: ClassLoader?): ObjectMapper = mappers(rpcOps, classLoader).mapper
+
+        /** The parser for 'run' commands, using the input mapper for [classLoader]. */
+        fun rpcParser(rpcOps: CordaRPCOps, classLoader: ClassLoader?): StringToMethodCallParser<CordaRPCOps> {
+            return mappers(rpcOps, classLoader).rpcParser
+        }
+
+        fun clear() {
+            byClassLoader.clear()
+        }
+
+        private fun mappers(rpcOps: CordaRPCOps, classLoader: ClassLoader?): Mappers {
+            val current = generation.get()
+            return byClassLoader.compute(classLoader ?: DEFAULT_CLASS_LOADER) { _, mappers ->
+                if (mappers != null && mappers.generation == current) mappers else Mappers(current, createInputMapper(rpcOps, classLoader))
+            }!!
+        }
+    }
+
+    /** Stands in for the null class loader, as the map doesn't take null keys. */
+    private val DEFAULT_CLASS_LOADER = Any()
+
+    private val generation = AtomicInteger()
+
+    /** Output writers by format and whether they're accelerated. */
+    private val outputWriters = ConcurrentHashMap<Pair<InteractiveShell.OutputFormat, Boolean>, ObjectWriter>()
+
+    private val projectingOutputWriters = ConcurrentHashMap<Pair<InteractiveShell.OutputFormat, Boolean>, ObjectWriter>()
+
+    private fun createInputMapper(rpcOps: CordaRPCOps, classLoader: ClassLoader?): ObjectMapper {
+        return InteractiveShell.createYamlInputMapper(rpcOps).apply {
+            if (classLoader != null) {
+                typeFactory = TypeFactory.defaultInstance().withClassLoader(classLoader)
+            }
+        }
+    }
+
+    /**
+     * The writer for [outputFormat], which only serializes the given dotted [fields] paths if they are given, and is
+     * [accelerated] as set with 'output-format accelerate' by default.
+     */
+    fun outputWriter(
+        outputFormat: InteractiveShell.OutputFormat,
+        fields: Collection<String>? = null,
+        accelerated: Boolean = InteractiveShell.isAcceleratedOutput()
+    ): ObjectWriter {
+        if (fields == null) {
+            return outputWriters.computeIfAbsent(Pair(outputFormat, accelerated)) {
+                createOutputWriter(InteractiveShell.createOutputMapper(outputFormat, accelerated), outputFormat)
+            }
+        }
+        // Projecting mappers can only be used together with a projection, so they're kept apart from the others.
+        val writer = projectingOutputWriters.computeIfAbsent(Pair(outputFormat, accelerated)) {
+            createOutputWriter(FieldProjection.install(InteractiveShell.createOutputMapper(outputFormat, accelerated)), outputFormat)
+        }
+        return writer.with(FieldProjection.filters(fields))
+    }
+
+    private fun createOutputWriter(mapper: ObjectMapper, outputFormat: InteractiveShell.OutputFormat): ObjectWriter {
+        return if (outputFormat.indented) mapper.writerWithDefaultPrettyPrinter() else mapper.writer()
+    }
+
+    /** Drops the input mappers of every session, to be called when a connection to the node has been re-established. */
+    fun connectionReestablished() {
+        generation.incrementAndGet()
+    }
+}
@@ -0,0 +1,141 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SequenceWriter
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import net.corda.core.node.services.Vault
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.PrintWriter
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE_NEW
+
+/**
+ * Writes the results of a 'run' command to [path] rather than to the terminal, in any of the output formats, including
+ * the binary ones which can't be shown on a terminal.
+ *
+ * Every value is written as a root level value of its own: the result itself, or the snapshot and then each update of
+ * a feed. With [InteractiveShell.OutputFormat.NDJSON] collections and vault pages are split into one line per element or
+ * state, as they are on the terminal, and tabular formats are written as the same table that would be printed, see [TabularPrinter]. Files
+ * written in a binary format can be read back with 'output-format decode', see [decode].
+ *
+ * [path] must not exist yet: the shell runs with the node's file permissions, so it never overwrites a file.
+ */
+internal class OutputFilePrinter(
+    private val path: Path,
+    outputFormat: InteractiveShell.OutputFormat,
+    columns: List<String>? = null,
+    fields: List<String>? = null
+) : OutputPrinter(ObjectMapperCache.outputWriter(outputFormat, fields)), Closeable {
+    companion object {
+        /** Smile output starts with this header, whereas CBOR has no header at all. */
+        private val SMILE_HEADER = byteArrayOf(':'.toByte(), ')'.toByte(), '\n'.toByte())
+
+        /** Prints the values in the CBOR or Smile file at [path] to [out], returning how many there were. */
+        fun decode(path: Path, printer: OutputPrinter, out: PrintWriter): Int {
+            return BufferedInputStream(Files.newInputStream(path)).use { input ->
+                val factory: JsonFactory = if (startsWith(input, SMILE_HEADER)) SmileFactory() else CBORFactory()
+                val values = ObjectMapper(factory).readerFor(JsonNode::class.java).readValues<JsonNode>(input)
+                var count = 0
+                values.forEach {
+                    printer.print(it, out)
+                    count++
+                }
+                out.flush()
+                count
+            }
+        }
+
+        private fun startsWith(input: BufferedInputStream, header: ByteArray): Boolean {
+            input.mark(header.size)
+            val start = ByteArray(header.size)
+            val read = input.read(start)
+            input.reset()
+            return read == header.size && start.contentEquals(header)
+        }
+    }
+
+    private val lineDelimited = outputFormat == InteractiveShell.OutputFormat.NDJSON
+    private val table: OutputPrinter? = outputFormat.separator?.let { OutputPrinter.forFormat(outputFormat, columns, fields) }
+    private val tableOut: PrintWriter? = table?.let { PrintWriter(Files.newBufferedWriter(path, CREATE_NEW)) }
+    private val values: SequenceWriter? = if (table != null) null else ObjectMapperCache.outputWriter(outputFormat, fields)
+        .let { if (lineDelimited) it.withRootValueSeparator(System.lineSeparator()) else it }
+        .writeValues(BufferedOutputStream(Files.newOutputStream(path, CREATE_NEW)))
+    private var written = 0
+    private var closed = false
+
+    override fun print(value: Any?, out: PrintWriter, prefix: String) {
+        when {
+            lineDelimited && value is Collection<*> -> value.forEach { write(it) }
+            lineDelimited && value is Array<*> -> value.forEach { write(it) }
+            lineDelimited && value is Vault.Page<*> -> value.states.forEach { write(it) }
+            else -> write(value)
+        }
+    }
+
+    override fun printSnapshot(snapshot: Any?, out: PrintWriter) {
+        print(snapshot, out)
+        flush()
+        out.println("Snapshot written to $path, following the updates ...")
+        out.flush()
+    }
+
+    override fun printObservation(count: Int, value: Any?, out: PrintWriter) {
+        write(value)
+        flush()
+    }
+
+    override fun openSequence(out: PrintWriter): ElementSequence = object : ElementSequence {
+        override fun print(elements: List<*>) {
+            // A table takes a batch at a time, so it can infer its header from the first one.
+            if (table != null) write(elements) else elements.forEach { write(it) }
+            flush()
+        }
+
+        override fun close() = Unit
+    }
+
+    @Synchronized
+    private fun write(value: Any?) {
+        if (closed) return
+        if (table != null) table.print(value, tableOut!!) else values!!.write(value)
+        written++
+    }
+
+    @Synchronized
+    private fun flush() {
+        if (closed) return
+        values?.flush()
+        tableOut?.flush()
+    }
+
+    /** Closes the file, returning how many values were written to it. Values that arrive afterwards are dropped. */
+    @Synchronized
+    fun finish(): Int {
+        close()
+        return written
+    }
+
+    /**
+     * Closes the file once the command writing to it has failed, deleting it if nothing was written, so the command can
+     * be run again with the same file.
+     */
+    @Synchronized
+    fun abandon() {
+        close()
+        if (written == 0) Files.deleteIfExists(path)
+    }
+
+    @Synchronized
+    override fun close() {
+        if (closed) return
+        closed = true
+        values?.close()
+        tableOut?.close()
+    }
+}
@@ -0,0 +1,253 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectWriter
+import net.corda.core.node.services.Vault
+import java.io.Closeable
+import java.io.PrintWriter
+import java.io.Writer
+
+/**
+ * Prints values to the terminal by serializing them with [writer] straight into the terminal's writer.
+ *
+ * The text reaches the terminal through a [ChunkedLineWriter], so a large result is passed on a chunk at a time while
+ * it's being serialized, rather than built up in full as one string first. That keeps the memory needed to print it
+ * bounded, and the first lines appear long before the last element has been serialized.
+ */
+internal open class OutputPrinter(private val writer: ObjectWriter, private val parallel: Boolean = false) {
+    companion object {
+        /**
+         * The printer for [outputFormat], which only prints the dotted [fields] paths of values if they're given. With a
+         * tabular format, [columns] are the columns of the table, and only those are printed.
+         */
+        fun forFormat(
+            outputFormat: InteractiveShell.OutputFormat,
+            columns: List<String>? = null,
+            fields: List<String>? = null
+        ): OutputPrinter {
+            val separator = outputFormat.separator
+            if (separator != null) {
+                // Array indices select elements in columns, but projections apply to every element.
+                val projection = columns?.map { column -> column.split('.').filterNot { it.all(Char::isDigit) }.joinToString(".") } ?: fields
+                return TabularPrinter(ObjectMapperCache.outputWriter(outputFormat, projection), separator, columns)
+            }
+            val writer = ObjectMapperCache.outputWriter(outputFormat, fields)
+            return if (outputFormat == InteractiveShell.OutputFormat.NDJSON) {
+                LineDelimitedPrinter(writer)
+            } else {
+                OutputPrinter(writer, InteractiveShell.isParallelOutput())
+            }
+        }
+    }
+
+    /** Prints [value] preceded by [prefix] on the same line, and ends the line. */
+    open fun print(value: Any?, out: PrintWriter, prefix: String = "") {
+        val target = ChunkedLineWriter(out, prefix)
+        if (parallel && value is List<*> && value.size >= ParallelSerializer.MIN_ELEMENTS) {
+            writer.createGenerator(target).use { generator ->
+                generator.writeStartArray()
+                ParallelSerializer(writer).writeElements(value, generator)
+                generator.writeEndArray()
+            }
+        } else {
+            writer.writeValue(target, value)
+        }
+        target.finish()
+    }
+
+    /**
+     * Prints the snapshot of a data feed, ahead of its updates. Snapshots that are collections, arrays or vault pages are
+     * printed an element at a time, each passed on to the terminal as soon as it has been serialized.
+     */
+    open fun printSnapshot(snapshot: Any?, out: PrintWriter) {
+        out.println("Snapshot:")
+        val target = ChunkedLineWriter(out)
+        writer.createGenerator(target).use { generator ->
+            when (snapshot) {
+                is Collection<*> -> writeElements(snapshot, generator, target)
+                is Array<*> -> writeElements(snapshot.asList(), generator, target)
+                is Vault.Page<*> -> writePage(snapshot, generator, target)
+                else -> writer.writeValue(generator, snapshot)
+            }
+        }
+        target.finish()
+        out.flush()
+        out.println("Updates:")
+    }
+
+    private fun writeElements(elements: Collection<*>, generator: JsonGenerator, target: ChunkedLineWriter) {
+        generator.writeStartArray()
+        writeEach(elements, generator, target)
+        generator.writeEndArray()
+    }
+
+    /** Writes [elements] one after the other, passing each on to the terminal once it has been serialized. */
+    private fun writeEach(elements: Collection<*>, generator: JsonGenerator, target: ChunkedLineWriter) {
+        if (parallel && elements is List<*> && elements.size >= ParallelSerializer.MIN_ELEMENTS) {
+            ParallelSerializer(writer).writeElements(elements, generator) {
+                generator.flush()
+                target.passOn()
+            }
+        } else {
+            elements.forEach {
+                writer.writeValue(generator, it)
+                generator.flush()
+                target.passOn()
+            }
+        }
+    }
+
+    /**
+     * Writes [page] as it would be serialized as a whole, but with its states and their metadata written one by one. The
+     * properties, and their order, are those the mapper of [writer] finds on the page.
+     */
+    private fun writePage(page: Vault.Page<*>, generator: JsonGenerator, target: ChunkedLineWriter) {
+        val projection = FieldProjection.of(writer)
+        val config = writer.config
+        val description = config.introspect(config.constructType(page.javaClass))
+        generator.writeStartObject()
+        for (property in description.findProperties()) {
+            val accessor = property.accessor ?: continue
+            if (projection != null && !projection.isIncluded(property.name)) continue
+            val value = accessor.getValue(page)
+            generator.writeFieldName(property.name)
+            if (value is Collection<*>) writeElements(value, generator, target) else writer.writeValue(generator, value)
+        }
+        generator.writeEndObject()
+    }
+
+    /**
+     * Starts printing elements that arrive a batch at a time, such as the states of the pages of a vault query, in the
+     * same way as the elements of a single list would be printed.
+     */
+    open fun openSequence(out: PrintWriter): ElementSequence = ArraySequence(out)
+
+    private inner class ArraySequence(out: PrintWriter) : ElementSequence {
+        private val target = ChunkedLineWriter(out)
+        private val generator = writer.createGenerator(target).apply { writeStartArray() }
+
+        override fun print(elements: List<*>) = writeEach(elements, generator, target)
+
+        override fun close() {
+            generator.writeEndArray()
+            generator.close()
+            target.finish()
+        }
+    }
+
+    /** Prints the [count]th value emitted by an observable. */
+    open fun printObservation(count: Int, value: Any?, out: PrintWriter) {
+        print(value, out, "Observation $count: ")
+    }
+
+    open fun printCompleted(out: PrintWriter) {
+        out.println("Observable has completed")
+    }
+
+    /** Prints a message about the output, for the formats that have room for one. */
+    open fun printNotice(notice: String, out: PrintWriter) {
+        out.println(notice)
+    }
+}
+
+/** Elements being printed a batch at a time, see [OutputPrinter.openSequence]. Closing it ends the output. */
+internal interface ElementSequence : Closeable {
+    fun print(elements: List<*>)
+}
+
+/**
+ * Prints newline-delimited JSON: every element of a collection or array result, every state of a vault page, every
+ * element of a snapshot and every update is printed as exactly one line of compact JSON, with none of the headings and prefixes, so the output can be
+ * piped straight into `jq` or a log shipper.
+ */
+internal class LineDelimitedPrinter(writer: ObjectWriter) : OutputPrinter(writer) {
+    override fun print(value: Any?, out: PrintWriter, prefix: String) {
+        when (value) {
+            is Collection<*> -> value.forEach { super.print(it, out) }
+            is Array<*> -> value.forEach { super.print(it, out) }
+            is Vault.Page<*> -> value.states.forEach { super.print(it, out) }
+            else -> super.print(value, out)
+        }
+    }
+
+    override fun printSnapshot(snapshot: Any?, out: PrintWriter) {
+        print(snapshot, out)
+        out.flush()
+    }
+
+    override fun printObservation(count: Int, value: Any?, out: PrintWriter) {
+        super.print(value, out)
+    }
+
+    override fun printCompleted(out: PrintWriter) = Unit
+
+    override fun printNotice(notice: String, out: PrintWriter) = Unit
+
+    override fun openSequence(out: PrintWriter): ElementSequence = object : ElementSequence {
+        override fun print(elements: List<*>) = this@LineDelimitedPrinter.print(elements, out)
+
+        override fun close() = Unit
+    }
+}
+
+/**
+ * A [Writer] that passes the text written to it on to [out] every [chunkSize] characters. Text that never fills a chunk
+ * is printed with a single println when the writer is [finish]ed, exactly as if it had been printed as a string.
+ *
+ * Flushing and closing are left to the owner of [out], so serializers can't flush half a line to the terminal.
+ */
+internal class ChunkedLineWriter(
+    private val out: PrintWriter,
+    prefix: String = "",
+    private val chunkSize: Int = DEFAULT_CHUNK_SIZE
+) : Writer() {
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 64 * 1024
+    }
+
+    private val buffer = StringBuilder(prefix)
+    private var passedOn = false
+
+    override fun write(cbuf: CharArray, off: Int, len: Int) {
+        buffer.append(cbuf, off, len)
+        passOnIfFull()
+    }
+
+    override fun write(str: String, off: Int, len: Int) {
+        buffer.append(str, off, off + len)
+        passOnIfFull()
+    }
+
+    override fun write(c: Int) {
+        buffer.append(c.toChar())
+        passOnIfFull()
+    }
+
+    override fun flush() = Unit
+
+    override fun close() = Unit
+
+    /** Passes on what has been written so far, without ending the line. */
+    fun passOn() {
+        if (buffer.isEmpty()) return
+        out.write(buffer.toString())
+        out.flush()
+        buffer.setLength(0)
+        passedOn = true
+    }
+
+    /** Prints whatever is left and ends the line. */
+    fun finish() {
+        if (passedOn) {
+            out.write(buffer.toString())
+            out.println()
+        } else {
+            out.println(buffer.toString())
+        }
+        buffer.setLength(0)
+    }
+
+    private fun passOnIfFull() {
+        if (buffer.length >= chunkSize) passOn()
+    }
+}
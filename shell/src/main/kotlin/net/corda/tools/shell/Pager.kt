@@ -0,0 +1,230 @@
+package net.corda.tools.shell
+
+import org.crsh.command.InvocationContext
+import org.crsh.text.RenderPrintWriter
+import java.io.PrintWriter
+import java.io.Writer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Shows a result a screen at a time, rendering it only as far as the operator reads, and keeping what has been rendered
+ * in a [SpillFile] rather than on the heap so earlier pages can be shown again and searched.
+ *
+ * The result is rendered on a thread of its own, through a writer that blocks once it's [LOOK_AHEAD] lines ahead of the
+ * last line shown, so a huge result is never serialized in full unless the operator pages or searches to its end. What
+ * other threads write, such as the updates of a feed arriving on the RPC thread, is handed to the rendering thread through
+ * a queue of at most [MAX_HANDED_OFF] lines instead, see [follow], so they never wait for the operator.
+ *
+ * CRaSH only hands lines of input to commands, so the pager is driven by short commands each followed by Enter: nothing
+ * for the next page, `b` for the previous one, `g` for the first, `/text` to search onwards for text, `n` to search
+ * again and `q` to quit.
+ */
+internal class Pager(private val context: InvocationContext<*>, private val out: RenderPrintWriter) {
+    companion object {
+        /** How many lines are rendered beyond the last one shown, ready for the next page. */
+        const val LOOK_AHEAD = 1000
+
+        /** How many lines written by other threads can wait for the rendering thread, beyond which they're dropped. */
+        const val MAX_HANDED_OFF = 10_000
+
+        private const val POLL_MILLIS = 100L
+
+        /** The size of the screen when the terminal doesn't tell. */
+        private const val DEFAULT_HEIGHT = 25
+        private const val DEFAULT_WIDTH = 80
+    }
+
+    private val lock = Object()
+    private val spill = SpillFile()
+    private var demand = 0
+    private var finished = false
+    private var closed = false
+    private val handedOff = ArrayBlockingQueue<String>(MAX_HANDED_OFF)
+    private val droppedHandOffs = AtomicInteger()
+
+    /** Shows what [render] writes to the writer it's given, returning once the operator quits. */
+    fun show(render: (PrintWriter) -> Unit) {
+        val renderer = thread(name = "Shell pager", isDaemon = true) {
+            try {
+                PrintWriter(RenderingWriter()).use(render)
+            } catch (e: Exception) {
+                synchronized(lock) {
+                    if (!closed) spill.append("Cannot show the rest of the result: ${e.message}")
+                }
+            } finally {
+                synchronized(lock) {
+                    finished = true
+                    lock.notifyAll()
+                }
+            }
+        }
+        context.takeAlternateBuffer()
+        try {
+            view()
+        } catch (e: InterruptedException) {
+            // Ctrl-C quits the pager like 'q' does.
+        } finally {
+            synchronized(lock) {
+                closed = true
+                lock.notifyAll()
+                spill.close()
+            }
+            renderer.interrupt()
+            context.releaseAlternateBuffer()
+        }
+    }
+
+    /**
+     * Shows what [render] writes to the first writer it's given, followed by what other threads write to the second one
+     * until the future [render] returns is done. Lines are only ever dropped if the operator falls more than
+     * [MAX_HANDED_OFF] lines behind, which is then noted at the end.
+     */
+    fun follow(render: (PrintWriter, PrintWriter) -> Future<*>) = show { target ->
+        val done = render(target, PrintWriter(HandOffWriter()))
+        try {
+            while (true) {
+                val line = handedOff.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)
+                when {
+                    line != null -> target.println(line)
+                    done.isDone && handedOff.isEmpty() -> break
+                }
+            }
+            val dropped = droppedHandOffs.get()
+            if (dropped > 0) target.println("($dropped lines were dropped as they arrived faster than they were read)")
+            done.get()
+        } finally {
+            // Stops whatever is writing once the operator has quit.
+            done.cancel(false)
+        }
+    }
+
+    private fun view() {
+        var top = 0
+        var search: String? = null
+        while (true) {
+            // The last row is left for the prompt.
+            val rows = (context.height.takeIf { it > 1 } ?: DEFAULT_HEIGHT) - 1
+            val shown = showPage(top, rows)
+            val atEnd = !isAvailable(top + shown)
+            val command = context.readLine(if (atEnd) "(END) " else ": ", true)?.trim() ?: return
+            when {
+                command == "q" -> return
+                command == "b" -> top = maxOf(0, top - rows)
+                command == "g" -> top = 0
+                command == "n" || command.startsWith("/") -> {
+                    if (command != "n") search = command.substring(1)
+                    val found = search?.let { find(it, top + 1) }
+                    if (found != null) top = found
+                }
+                !atEnd -> top += shown
+            }
+        }
+    }
+
+    /** Shows the lines from [top] that fit in [rows] rows, returning how many there were. */
+    private fun showPage(top: Int, rows: Int): Int {
+        val width = context.width.takeIf { it > 0 } ?: DEFAULT_WIDTH
+        out.cls()
+        var used = 0
+        var index = top
+        while (isAvailable(index)) {
+            val line = synchronized(lock) { spill.line(index) }
+            val lineRows = maxOf(1, (line.length + width - 1) / width)
+            if (used > 0 && used + lineRows > rows) break
+            out.println(line)
+            used += lineRows
+            index++
+            if (used >= rows) break
+        }
+        out.flush()
+        return index - top
+    }
+
+    private fun find(text: String, from: Int): Int? {
+        var index = from
+        while (isAvailable(index)) {
+            if (synchronized(lock) { spill.line(index) }.contains(text)) return index
+            index++
+        }
+        return null
+    }
+
+    /** Whether there's a line [index], waiting for it to be rendered if need be. */
+    private fun isAvailable(index: Int): Boolean {
+        synchronized(lock) {
+            demand = maxOf(demand, index + 1 + LOOK_AHEAD)
+            lock.notifyAll()
+            while (spill.lines <= index && !finished) {
+                lock.wait()
+            }
+            return spill.lines > index
+        }
+    }
+
+    /** Splits what other threads write into lines for the rendering thread, dropping them when it's too far behind. */
+    private inner class HandOffWriter : Writer() {
+        private val line = StringBuilder()
+
+        @Synchronized
+        override fun write(cbuf: CharArray, off: Int, len: Int) {
+            for (i in off until off + len) {
+                when (cbuf[i]) {
+                    '\n' -> handOff()
+                    '\r' -> Unit
+                    else -> line.append(cbuf[i])
+                }
+            }
+        }
+
+        override fun flush() = Unit
+
+        @Synchronized
+        override fun close() {
+            if (line.isNotEmpty()) handOff()
+        }
+
+        private fun handOff() {
+            if (!handedOff.offer(line.toString())) droppedHandOffs.incrementAndGet()
+            line.setLength(0)
+        }
+    }
+
+    /** Splits what's rendered into lines for the spill file, waiting while it's far enough ahead of what's been shown. */
+    private inner class RenderingWriter : Writer() {
+        private val line = StringBuilder()
+
+        override fun write(cbuf: CharArray, off: Int, len: Int) {
+            for (i in off until off + len) {
+                when (cbuf[i]) {
+                    '\n' -> emit()
+                    '\r' -> Unit
+                    else -> line.append(cbuf[i])
+                }
+            }
+        }
+
+        override fun flush() = Unit
+
+        override fun close() {
+            if (line.isNotEmpty()) emit()
+        }
+
+        private fun emit() {
+            synchronized(lock) {
+                while (!closed && spill.lines >= demand) {
+                    lock.wait()
+                }
+                // Not an IOException, which the PrintWriter in between would swallow, so rendering stops here.
+                if (closed) throw CancellationException("The pager has been closed")
+                spill.append(line.toString())
+                lock.notifyAll()
+            }
+            line.setLength(0)
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.util.TokenBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Future
+
+/**
+ * Serializes the elements of large lists on a fork-join pool, a chunk of [chunkSize] elements per task.
+ *
+ * Each task serializes its chunk into a [TokenBuffer] of its own, which records the calls the serializers make rather
+ * than producing text. The buffers are then replayed into the real generator one after the other, in the order of the
+ * list. The generator receives exactly the calls it would have if the elements had been serialized straight into it,
+ * so the output is byte-for-byte the same, while the costly part of serializing, reading and converting the properties
+ * of every element, is spread over the pool. At most [window] chunks are buffered at any time.
+ *
+ * A [FieldProjection] matches the paths of properties against the names of the fields enclosing them, which a buffer
+ * doesn't have, so elements written inside a field with a projection active are serialized straight into the generator.
+ */
+internal class ParallelSerializer(
+    private val writer: ObjectWriter,
+    private val pool: ForkJoinPool = ForkJoinPool.commonPool(),
+    private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+    private val window: Int = pool.parallelism * 2
+) {
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 512
+
+        /** Lists with fewer elements than this aren't worth splitting up. */
+        const val MIN_ELEMENTS = DEFAULT_CHUNK_SIZE * 2
+    }
+
+    /**
+     * Writes the [elements] to [generator] as consecutive values, calling [afterChunk] after each chunk has been
+     * written. The caller writes whatever encloses them, such as the start and end of an array.
+     */
+    fun writeElements(elements: List<*>, generator: JsonGenerator, afterChunk: () -> Unit = {}) {
+        if (FieldProjection.of(writer) != null && isInField(generator)) {
+            elements.forEachIndexed { index, element ->
+                writer.writeValue(generator, element)
+                if ((index + 1) % chunkSize == 0 || index == elements.size - 1) afterChunk()
+            }
+            return
+        }
+        val chunks = (0 until elements.size step chunkSize).iterator()
+        val pending = ArrayDeque<Future<TokenBuffer>>()
+        // Objects that serializers write through the codec are serialized into the buffers by the same codec as they
+        // would be into the generator, and type and object ids are kept native if the generator has them.
+        val newBuffer = { TokenBuffer(generator.codec, generator.canWriteTypeId()) }
+        try {
+            while (pending.size < window && chunks.hasNext()) {
+                pending += serialize(elements, chunks.next(), newBuffer)
+            }
+            while (pending.isNotEmpty()) {
+                val buffer = try {
+                    pending.poll().get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+                if (chunks.hasNext()) {
+                    pending += serialize(elements, chunks.next(), newBuffer)
+                }
+                buffer.serialize(generator)
+                afterChunk()
+            }
+        } finally {
+            pending.forEach { it.cancel(false) }
+        }
+    }
+
+    private fun isInField(generator: JsonGenerator): Boolean {
+        var context = generator.outputContext
+        while (context != null) {
+            if (context.inObject() && context.currentName != null) return true
+            context = context.parent
+        }
+        return false
+    }
+
+    private fun serialize(elements: List<*>, start: Int, newBuffer: () -> TokenBuffer): Future<TokenBuffer> {
+        val buffer = newBuffer()
+        return pool.submit(Callable<TokenBuffer> {
+            for (index in start until minOf(start + chunkSize, elements.size)) {
+                writer.writeValue(buffer, elements[index])
+            }
+            buffer
+        })
+    }
+}
@@ -30,7 +30,11 @@ internal class DefaultRPCOpsProducer(
                     configuration.hostAndPort,
                     configuration.ssl,
                     classLoader
-                ).start(username!!, credential!!, gracefulReconnect = GracefulReconnect())
+                ).start(username!!, credential!!, gracefulReconnect = GracefulReconnect(onReconnect = {
+                    // The node may have changed while the shell was disconnected.
+                    ObjectMapperCache.connectionReestablished()
+                    CachingRPCOps.connectionReestablished()
+                }))
             } else {
                 CordaRPCClient(
                     hostAndPort = configuration.hostAndPort,
@@ -0,0 +1,88 @@
+package net.corda.tools.shell
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+
+/**
+ * Lines of text kept in a temporary file, which is mapped into memory a segment of [segmentSize] bytes at a time as it
+ * grows. Only the offsets of the lines are kept on the heap, so the text itself can be much larger than the heap, and is
+ * left to the operating system to page in and out.
+ *
+ * The file is deleted when closed.
+ */
+internal class SpillFile(private val segmentSize: Int = DEFAULT_SEGMENT_SIZE) : Closeable {
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024
+    }
+
+    private val path = Files.createTempFile("corda-shell-", ".spill")
+    private val channel = FileChannel.open(path, READ, WRITE)
+    private val segments = ArrayList<MappedByteBuffer>()
+
+    /** Where each line starts, followed by where the last one ends. */
+    private var offsets = LongArray(1024)
+    private var lineCount = 0
+
+    val lines: Int
+        @Synchronized get() = lineCount
+
+    @Synchronized
+    fun append(line: String) {
+        val bytes = line.toByteArray(Charsets.UTF_8)
+        var position = offsets[lineCount]
+        var written = 0
+        while (written < bytes.size) {
+            val offset = (position % segmentSize).toInt()
+            val length = minOf(bytes.size - written, segmentSize - offset)
+            (segmentAt(position).duplicate().position(offset) as ByteBuffer).put(bytes, written, length)
+            written += length
+            position += length
+        }
+        if (lineCount + 2 > offsets.size) {
+            offsets = offsets.copyOf(offsets.size * 2)
+        }
+        offsets[++lineCount] = position
+    }
+
+    @Synchronized
+    fun line(index: Int): String {
+        require(index in 0 until lineCount) { "No line $index, there are $lineCount" }
+        val start = offsets[index]
+        val bytes = ByteArray((offsets[index + 1] - start).toInt())
+        var read = 0
+        while (read < bytes.size) {
+            val position = start + read
+            val offset = (position % segmentSize).toInt()
+            val length = minOf(bytes.size - read, segmentSize - offset)
+            (segmentAt(position).duplicate().position(offset) as ByteBuffer).get(bytes, read, length)
+            read += length
+        }
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun segmentAt(position: Long): MappedByteBuffer {
+        val index = (position / segmentSize).toInt()
+        while (segments.size <= index) {
+            segments += channel.map(FileChannel.MapMode.READ_WRITE, segments.size.toLong() * segmentSize, segmentSize.toLong())
+        }
+        return segments[index]
+    }
+
+    @Synchronized
+    override fun close() {
+        channel.close()
+        segments.clear()
+        try {
+            Files.deleteIfExists(path)
+        } catch (e: IOException) {
+            // Some platforms don't delete files that are still mapped.
+            path.toFile().deleteOnExit()
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.core.JsonPointer
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.util.TokenBuffer
+import net.corda.core.node.services.Vault
+import java.io.PrintWriter
+
+/**
+ * Prints results as a table of comma or tab separated values, one row per element of a result, of a vault page, of a
+ * snapshot and per update. Each element is flattened to its leaf values, named by their dotted paths, such as
+ * `state.data.amount.quantity`, with array indices as path segments.
+ *
+ * The header is either the given [columns], which need not be leaves, or the columns of the first page printed. Rows of
+ * later pages are printed against that header as they arrive, dropping values the header has no column for. Given
+ * [columns], [writer] should skip everything else while serializing, see [ObjectMapperCache.outputWriter].
+ */
+internal class TabularPrinter(
+    private val writer: ObjectWriter,
+    private val separator: Char,
+    columns: List<String>? = null
+) : OutputPrinter(writer) {
+    companion object {
+        /** The name of the single column of results whose elements aren't objects or arrays. */
+        const val VALUE_COLUMN = "value"
+
+        private val treeMapper = ObjectMapper()
+    }
+
+    private var header: List<String>? = columns
+    private var pointers: List<JsonPointer?> = emptyList()
+    private var headerPrinted = false
+
+    override fun print(value: Any?, out: PrintWriter, prefix: String) {
+        val header = this.header
+        if (header != null) {
+            printHeaderOnce(header, out)
+            rowsOf(value).forEach { printRow(toTree(it), out) }
+        } else {
+            // The header is made of the columns of the whole first page, so all of it is flattened before printing.
+            val page = rowsOf(value).map { toTree(it) }
+            if (page.isEmpty()) return
+            val columns = LinkedHashSet<String>()
+            page.forEach { flatten(it, "", columns) }
+            this.header = columns.toList()
+            printHeaderOnce(columns.toList(), out)
+            page.forEach { printRow(it, out) }
+        }
+    }
+
+    override fun printSnapshot(snapshot: Any?, out: PrintWriter) {
+        print(snapshot, out)
+        out.flush()
+    }
+
+    override fun printObservation(count: Int, value: Any?, out: PrintWriter) {
+        print(value, out)
+    }
+
+    override fun printCompleted(out: PrintWriter) = Unit
+
+    override fun printNotice(notice: String, out: PrintWriter) = Unit
+
+    override fun openSequence(out: PrintWriter): ElementSequence = object : ElementSequence {
+        override fun print(elements: List<*>) = this@TabularPrinter.print(elements, out)
+
+        override fun close() = Unit
+    }
+
+    private fun rowsOf(value: Any?): List<Any?> {
+        return when (value) {
+            is Collection<*> -> value.toList()
+            is Array<*> -> value.toList()
+            is Vault.Page<*> -> value.states
+            else -> listOf(value)
+        }
+    }
+
+    private fun toTree(value: Any?): JsonNode {
+        val buffer = TokenBuffer(treeMapper, false)
+        writer.writeValue(buffer, value)
+        return treeMapper.readTree(buffer.asParser(treeMapper))
+    }
+
+    private fun flatten(node: JsonNode, path: String, columns: MutableSet<String>) {
+        when {
+            node.isObject && node.size() > 0 -> node.fields().forEach { (name, child) -> flatten(child, join(path, name), columns) }
+            node.isArray && node.size() > 0 -> node.forEachIndexed { index, child -> flatten(child, join(path, index.toString()), columns) }
+            else -> columns += if (path.isEmpty()) VALUE_COLUMN else path
+        }
+    }
+
+    private fun join(path: String, name: String) = if (path.isEmpty()) name else "$path.$name"
+
+    private fun printHeaderOnce(header: List<String>, out: PrintWriter) {
+        if (headerPrinted) return
+        headerPrinted = true
+        pointers = header.map { if (it == VALUE_COLUMN) null else pointerOf(it) }
+        printLine(header, out)
+    }
+
+    private fun pointerOf(column: String): JsonPointer {
+        return JsonPointer.compile(column.split('.').joinToString("") { "/" + it.replace("~", "~0").replace("/", "~1") })
+    }
+
+    private fun printRow(row: JsonNode, out: PrintWriter) {
+        printLine(pointers.map { pointer ->
+            val node = when {
+                pointer != null -> row.at(pointer)
+                row.isValueNode -> row
+                else -> row.get(VALUE_COLUMN)
+            }
+            when {
+                node == null || node.isMissingNode || node.isNull -> ""
+                node.isValueNode -> node.asText()
+                else -> node.toString()
+            }
+        }, out)
+    }
+
+    private fun printLine(cells: List<String>, out: PrintWriter) {
+        out.println(cells.joinToString(separator.toString()) { escape(it) })
+    }
+
+    private fun escape(cell: String): String {
+        return if (separator == '\t') {
+            // TSV has no quoting, so the characters that would break up the table are escaped instead.
+            cell.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r")
+        } else if (cell.any { it == separator || it == '"' || it == '\n' || it == '\r' }) {
+            "\"" + cell.replace("\"", "\"\"") + "\""
+        } else {
+            cell
+        }
+    }
+}
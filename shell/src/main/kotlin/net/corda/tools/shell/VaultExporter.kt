@@ -0,0 +1,170 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE_NEW
+import java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+import java.nio.file.StandardOpenOption.WRITE
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPOutputStream
+import kotlin.concurrent.thread
+
+/**
+ * Writes states to a gzip compressed file of newline delimited JSON, one state per line, as [writer] serializes them.
+ *
+ * The states are serialized on the calling thread, a batch at a time, and handed to a thread of its own that compresses
+ * them and writes them to a [FileChannel] through a large direct buffer, so that serializing, compressing and writing
+ * overlap. At most [queueDepth] batches wait to be written. The SHA-256 [checksum] of the file is worked out as it's
+ * written, for the [VaultExportManifest].
+ *
+ * The file must not exist yet, so an export never overwrites anything. Closing the exporter before [finish] abandons the
+ * export and deletes the file.
+ */
+internal class VaultExporter(
+    private val path: Path,
+    private val writer: ObjectWriter,
+    bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    queueDepth: Int = DEFAULT_QUEUE_DEPTH
+) : Closeable {
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024
+        const val DEFAULT_QUEUE_DEPTH = 4
+
+        private val END = ByteArray(0)
+        private const val LINE_SEPARATOR = '\n'.toInt()
+    }
+
+    private val batches = ArrayBlockingQueue<ByteArray>(queueDepth)
+    private val digest = MessageDigest.getInstance("SHA-256")
+    private val channel = FileChannel.open(path, CREATE_NEW, WRITE)
+    @Volatile
+    private var failure: Throwable? = null
+    private var finished = false
+    private val writerThread = thread(name = "Shell vault export", isDaemon = true) {
+        try {
+            GZIPOutputStream(ChannelOutputStream(channel, bufferSize), bufferSize).use { gzip ->
+                while (true) {
+                    val batch = batches.take()
+                    if (batch === END) break
+                    gzip.write(batch)
+                }
+            }
+        } catch (e: Throwable) {
+            failure = e
+        }
+    }
+
+    /** How many states have been exported so far. */
+    var states = 0L
+        private set
+
+    /** The SHA-256 checksum of the file, in hex, once [finish] has returned. */
+    lateinit var checksum: String
+        private set
+
+    fun export(elements: List<*>) {
+        val batch = ByteArrayOutputStream()
+        for (element in elements) {
+            // Closing a ByteArrayOutputStream, as Jackson does once the value is written, does nothing.
+            writer.writeValue(batch, element)
+            batch.write(LINE_SEPARATOR)
+        }
+        enqueue(batch.toByteArray())
+        states += elements.size
+    }
+
+    /** Waits for everything to be written, returning how many states there were. */
+    fun finish(): Long {
+        enqueue(END)
+        writerThread.join()
+        failure?.let { throw IOException("Cannot write to $path: ${it.message}", it) }
+        checksum = digest.digest().joinToString("") { String.format("%02x", it) }
+        finished = true
+        return states
+    }
+
+    private fun enqueue(batch: ByteArray) {
+        while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            // The writer thread doesn't take any more batches once it has failed.
+            failure?.let { throw IOException("Cannot write to $path: ${it.message}", it) }
+        }
+    }
+
+    override fun close() {
+        if (finished) return
+        writerThread.interrupt()
+        writerThread.join()
+        channel.close()
+        Files.deleteIfExists(path)
+    }
+
+    /** Writes to [channel] through a direct buffer, adding what's written to the [digest] on the way. */
+    private inner class ChannelOutputStream(private val channel: FileChannel, bufferSize: Int) : OutputStream() {
+        private val buffer = ByteBuffer.allocateDirect(bufferSize)
+
+        override fun write(b: Int) {
+            if (!buffer.hasRemaining()) drain()
+            buffer.put(b.toByte())
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var written = 0
+            while (written < len) {
+                if (!buffer.hasRemaining()) drain()
+                val length = minOf(len - written, buffer.remaining())
+                buffer.put(b, off + written, length)
+                written += length
+            }
+        }
+
+        override fun close() {
+            drain()
+            channel.force(true)
+            channel.close()
+        }
+
+        private fun drain() {
+            buffer.flip()
+            digest.update(buffer.duplicate())
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            buffer.clear()
+        }
+    }
+
+}
+
+/** Describes an export, in a file of its own next to it, so that the export can be checked before it's loaded. */
+internal data class VaultExportManifest(
+    val file: String,
+    val format: String,
+    val compression: String,
+    val states: Long,
+    val stateType: String,
+    val status: String,
+    val criteria: String,
+    val sha256: String,
+    /** When the export finished, in ISO-8601. */
+    val exportedAt: String
+) {
+    companion object {
+        private val writer = ObjectMapper().writerWithDefaultPrettyPrinter()
+
+        /** Where the manifest of the export to [path] goes. */
+        fun pathFor(path: Path): Path = path.resolveSibling("${path.fileName}.manifest.json")
+    }
+
+    /** Writes the manifest to [path], which was created empty before the export started to reserve it. */
+    fun write(path: Path) = Files.newOutputStream(path, WRITE, TRUNCATE_EXISTING).use { writer.writeValue(it, this) }
+}
@@ -0,0 +1,95 @@
+package net.corda.tools.shell
+
+import net.corda.core.contracts.ContractState
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.node.services.Vault
+import net.corda.core.node.services.vault.DEFAULT_PAGE_NUM
+import net.corda.core.node.services.vault.PageSpecification
+import net.corda.core.node.services.vault.QueryCriteria
+import net.corda.core.node.services.vault.Sort
+import net.corda.core.node.services.vault.SortAttribute
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Walks through all the states matching [criteria] a page of [pageSize] states at a time, so that however many there
+ * are, only one page is held at once.
+ *
+ * The states are sorted by their state reference, so that the pages follow on from each other. States recorded while
+ * the pages are walked through may still shift later pages, as with any paged query.
+ *
+ * While a page is being consumed, the next [prefetch] pages are requested in the background, one after the other, so
+ * that the node is querying while the shell is printing rather than each waiting for the other. At most
+ * [MAX_PREFETCHED_STATES] states are requested ahead, however many pages that makes.
+ */
+internal class VaultQueryStreamer(
+    private val rpcOps: CordaRPCOps,
+    private val contractStateType: Class<out ContractState>,
+    val criteria: QueryCriteria,
+    private val pageSize: Int = DEFAULT_PAGE_SIZE,
+    prefetch: Int = DEFAULT_PREFETCH
+) {
+    companion object {
+        const val DEFAULT_PAGE_SIZE = 200
+        const val DEFAULT_PREFETCH = 2
+
+        /** Bounds the memory taken by the pages requested ahead. */
+        const val MAX_PREFETCHED_STATES = 10_000
+
+        private val SORT_BY_STATE_REF = Sort(listOf(Sort.SortColumn(SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF))))
+    }
+
+    init {
+        require(pageSize >= 1) { "The page size must be at least 1" }
+        require(prefetch >= 0) { "The number of pages to prefetch can't be negative" }
+    }
+
+    /** None at all once a single page holds more than [MAX_PREFETCHED_STATES] states. */
+    private val prefetch = minOf(prefetch, MAX_PREFETCHED_STATES / pageSize)
+
+    /**
+     * Hands each page to [consume] in turn, returning how many states there were. Stops early, throwing
+     * [InterruptedException], if the thread is interrupted, and cancels the pages requested ahead whichever way it stops.
+     */
+    fun run(consume: (Vault.Page<ContractState>) -> Unit): Long {
+        val fetcher = Executors.newSingleThreadExecutor { Thread(it, "Shell vault query").apply { isDaemon = true } }
+        val pending = ArrayDeque<Future<Vault.Page<ContractState>>>()
+        try {
+            pending += fetcher.submit(Callable { fetch(DEFAULT_PAGE_NUM) })
+            var requested = DEFAULT_PAGE_NUM
+            var states = 0L
+            while (pending.isNotEmpty()) {
+                if (Thread.interrupted()) throw InterruptedException()
+                val page = try {
+                    pending.poll().get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+                // The last page is worked out again from each page, in case states have been recorded since.
+                val lastPage = ((page.totalStatesAvailable + pageSize - 1) / pageSize).toInt()
+                while (pending.size < prefetch && requested < lastPage) {
+                    val pageNumber = ++requested
+                    pending += fetcher.submit(Callable { fetch(pageNumber) })
+                }
+                consume(page)
+                states += page.states.size
+                if (page.states.size < pageSize) return states
+                if (pending.isEmpty() && requested < lastPage) {
+                    val pageNumber = ++requested
+                    pending += fetcher.submit(Callable { fetch(pageNumber) })
+                }
+            }
+            return states
+        } finally {
+            pending.forEach { it.cancel(true) }
+            fetcher.shutdownNow()
+        }
+    }
+
+    private fun fetch(pageNumber: Int): Vault.Page<ContractState> {
+        return rpcOps.vaultQueryBy(criteria, PageSpecification(pageNumber, pageSize), SORT_BY_STATE_REF, contractStateType)
+    }
+}
@@ -73,6 +73,12 @@ class ShellCmdLineOptions {
     )
     var trustStoreType: String? = null
 
+    @Option(
+        names = ["--warm-up"],
+        description = ["Load the CorDapp flows and prepare their argument parsing in the background after connecting, so the first start of each flow is as fast as later ones."]
+    )
+    var warmUp: Boolean = false
+
     private fun toConfigFile(): Config {
         val cmdOpts = mutableMapOf<String, Any?>()
 
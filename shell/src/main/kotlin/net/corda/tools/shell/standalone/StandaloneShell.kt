@@ -107,6 +107,9 @@ D""".trimStart()
             println("Cannot login to ${configuration.hostAndPort}, reason: \"${e.message}\"")
             return ExitCodes.FAILURE
         }
+        if (cmdLineOptions.warmUp) {
+            InteractiveShell.warmUpFlows()
+        }
 
         val exit = CountDownLatch(1)
         AnsiConsole.systemInstall()
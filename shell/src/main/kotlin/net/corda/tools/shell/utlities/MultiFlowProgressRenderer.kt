@@ -0,0 +1,211 @@
+package net.corda.tools.shell.utlities
+
+import net.corda.core.flows.StateMachineRunId
+import net.corda.core.internal.Emoji
+import net.corda.core.internal.rootCause
+import net.corda.core.messaging.FlowProgressHandle
+import net.corda.core.utilities.getOrThrow
+import org.apache.commons.lang3.SystemUtils
+import org.crsh.text.RenderPrintWriter
+import org.fusesource.jansi.Ansi
+import org.fusesource.jansi.Ansi.Attribute
+import rx.Observable
+import rx.subjects.PublishSubject
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps track of several flows started in the background and renders their progress together, as one summary line per
+ * flow that can be expanded to the full progress tracker tree.
+ *
+ * The progress and completion events of every tracked flow are merged into a single stream, which maintains the state
+ * shown on screen. Rendering only samples that state, so a burst of progress updates costs one redraw at most.
+ *
+ * A finished flow is forgotten once its final state has been rendered. Until then it is kept, but only the latest
+ * [MAX_FINISHED_FLOWS] of them, so flows started in the background of a session that never renders them don't pile up.
+ */
+class MultiFlowProgressRenderer {
+    companion object {
+        private const val REDRAW_INTERVAL_MILLIS = 200L
+        internal const val MAX_FINISHED_FLOWS = 100
+    }
+
+    private enum class Status { RUNNING, COMPLETED, FAILED }
+
+    private class TrackedFlow(val id: StateMachineRunId, val flowName: String) {
+        var tree: List<Pair<Int, String>> = emptyList()
+        var treeIndex = 0
+        var status = Status.RUNNING
+        var outcome: String? = null
+        var finalStateDrawn = false
+    }
+
+    private sealed class Event(val id: StateMachineRunId) {
+        class Progress(id: StateMachineRunId, val tree: List<Pair<Int, String>>, val index: Int) : Event(id)
+        class Finished(id: StateMachineRunId, val status: Status, val outcome: String) : Event(id)
+    }
+
+    private val usingUnicode = !SystemUtils.IS_OS_WINDOWS
+    private val flows = LinkedHashMap<StateMachineRunId, TrackedFlow>()
+    private val events = PublishSubject.create<Event>().toSerialized()
+    private val changes = PublishSubject.create<Unit>().toSerialized()
+
+    init {
+        events.subscribe { event ->
+            synchronized(flows) {
+                val flow = flows[event.id] ?: return@subscribe
+                when (event) {
+                    is Event.Progress -> {
+                        flow.tree = event.tree
+                        flow.treeIndex = event.index
+                    }
+                    is Event.Finished -> {
+                        flow.status = event.status
+                        flow.outcome = event.outcome
+                        forgetOldestFinished()
+                    }
+                }
+            }
+            changes.onNext(Unit)
+        }
+    }
+
+    /** Starts following the progress of the flow behind [handle]. */
+    fun track(handle: FlowProgressHandle<*>, flowName: String) {
+        synchronized(flows) {
+            flows[handle.id] = TrackedFlow(handle.id, flowName.substringAfterLast('.'))
+        }
+        val treeFeed = handle.stepsTreeFeed
+        val indexFeed = handle.stepsTreeIndexFeed
+        if (treeFeed != null && indexFeed != null) {
+            Observable.combineLatest(
+                treeFeed.updates.startWith(treeFeed.snapshot),
+                indexFeed.updates.startWith(indexFeed.snapshot)
+            ) { tree, index -> Event.Progress(handle.id, tree, index) }
+                .subscribe({ events.onNext(it) }, { /* Reported through the return value. */ })
+        }
+        handle.returnValue.then {
+            val event = try {
+                Event.Finished(handle.id, Status.COMPLETED, "Completed with result: ${it.getOrThrow()}")
+            } catch (e: Exception) {
+                Event.Finished(handle.id, Status.FAILED, "Failed: ${e.rootCause.message ?: e.rootCause}")
+            }
+            events.onNext(event)
+        }
+    }
+
+    /** Whether there are any tracked flows, finished or not. */
+    fun isEmpty(): Boolean = synchronized(flows) { flows.isEmpty() }
+
+    /** How many flows are tracked, finished or not. */
+    internal fun size(): Int = synchronized(flows) { flows.size }
+
+    /** Must be called holding the lock on [flows]. */
+    private fun forgetOldestFinished() {
+        var excess = flows.values.count { it.status != Status.RUNNING } - MAX_FINISHED_FLOWS
+        if (excess <= 0) return
+        val iterator = flows.values.iterator()
+        while (excess > 0 && iterator.hasNext()) {
+            if (iterator.next().status != Status.RUNNING) {
+                iterator.remove()
+                excess--
+            }
+        }
+    }
+
+    /**
+     * Renders the tracked flows to [out] until they have all finished, or the thread is interrupted. Flows whose run id
+     * starts with one of [expanded] are shown with their full progress tree, or all of them if [expandAll] is set.
+     * Finished flows are forgotten once their final state has been rendered.
+     */
+    fun render(out: RenderPrintWriter, expanded: List<String> = emptyList(), expandAll: Boolean = false) {
+        var linesDrawn = 0
+        val allFinished = CountDownLatch(1)
+        fun redraw() {
+            synchronized(out) {
+                val (ansi, lines, done) = draw(linesDrawn, expanded, expandAll)
+                out.print(ansi)
+                out.flush()
+                linesDrawn = lines
+                if (done) allFinished.countDown()
+            }
+        }
+
+        val subscription = changes.throttleLast(REDRAW_INTERVAL_MILLIS, TimeUnit.MILLISECONDS).subscribe { redraw() }
+        try {
+            redraw()
+            allFinished.await()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } finally {
+            subscription.unsubscribe()
+            synchronized(flows) {
+                flows.values.removeAll { it.finalStateDrawn }
+            }
+        }
+    }
+
+    private fun draw(previousLines: Int, expanded: List<String>, expandAll: Boolean): Triple<Ansi, Int, Boolean> {
+        val ansi = Ansi()
+        if (previousLines > 0) ansi.cursorUp(previousLines)
+        var lines = 0
+        val allFinished = synchronized(flows) {
+            for (flow in flows.values) {
+                val id = flow.id.uuid.toString()
+                lines += drawSummary(ansi, flow)
+                if (flow.status != Status.RUNNING) flow.finalStateDrawn = true
+                if (expandAll || expanded.any { id.startsWith(it) }) {
+                    lines += drawTree(ansi, flow)
+                }
+            }
+            flows.values.none { it.status == Status.RUNNING }
+        }
+        if (lines < previousLines) {
+            // Flows that were dropped from the view mustn't leave junk below it.
+            val linesToClear = previousLines - lines
+            repeat(linesToClear) { ansi.eraseLine().newline() }
+            ansi.cursorUp(linesToClear)
+        }
+        return Triple(ansi, lines, allFinished)
+    }
+
+    private fun drawSummary(ansi: Ansi, flow: TrackedFlow): Int {
+        val marker = when (flow.status) {
+            Status.RUNNING -> if (usingUnicode) "${Emoji.rightArrow} " else "RUNNING: "
+            Status.COMPLETED -> if (usingUnicode) "${Emoji.greenTick} " else "DONE: "
+            Status.FAILED -> if (usingUnicode) "${Emoji.noEntry} " else "ERROR: "
+        }
+        val detail = when (flow.status) {
+            Status.RUNNING -> {
+                val step = flow.tree.getOrNull(flow.treeIndex)?.second
+                if (step == null) "Starting" else "[${flow.treeIndex + 1}/${flow.tree.size}] $step"
+            }
+            else -> flow.outcome
+        }
+        ansi.eraseLine()
+        if (flow.status == Status.FAILED) ansi.fgRed()
+        ansi.a(marker).a(Attribute.INTENSITY_BOLD).a(flow.flowName).a(Attribute.INTENSITY_BOLD_OFF)
+        ansi.a(" ${flow.id.uuid} $detail")
+        ansi.reset().newline()
+        return 1
+    }
+
+    private fun drawTree(ansi: Ansi, flow: TrackedFlow): Int {
+        for ((index, step) in flow.tree.withIndex()) {
+            val (level, description) = step
+            val marker = when {
+                flow.status == Status.COMPLETED || index < flow.treeIndex -> if (usingUnicode) " ${Emoji.greenTick} " else "DONE: "
+                index == flow.treeIndex && flow.status == Status.RUNNING -> if (usingUnicode) "${Emoji.rightArrow} " else "CURRENT: "
+                else -> "    "
+            }
+            ansi.eraseLine().a("    ".repeat(level + 1)).a(marker)
+            if (index == flow.treeIndex && flow.status == Status.RUNNING) {
+                ansi.a(Attribute.INTENSITY_BOLD).a(description).a(Attribute.INTENSITY_BOLD_OFF)
+            } else {
+                ansi.a(description)
+            }
+            ansi.newline()
+        }
+        return flow.tree.size
+    }
+}
@@ -0,0 +1,66 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.messaging.DataFeed
+import net.corda.core.node.NodeInfo
+import net.corda.core.node.services.NetworkMapCache
+import org.junit.Test
+import rx.subjects.PublishSubject
+import kotlin.test.assertSame
+
+class CachingRPCOpsTest {
+    private val nodeInfo = mock<NodeInfo>()
+    private val networkMapUpdates = PublishSubject.create<NetworkMapCache.MapChange>()
+    private val rpcOps = mock<CordaRPCOps>().also {
+        whenever(it.nodeInfo()).thenReturn(nodeInfo)
+        whenever(it.networkMapFeed()).thenReturn(DataFeed(listOf(nodeInfo), networkMapUpdates))
+    }
+    private val cachingRpcOps = CachingRPCOps.wrap(rpcOps)
+
+    @Test(timeout = 300_000)
+    fun `read-only calls are answered from memory`() {
+        assertSame(nodeInfo, cachingRpcOps.nodeInfo())
+        assertSame(nodeInfo, cachingRpcOps.nodeInfo())
+        verify(rpcOps, times(1)).nodeInfo()
+    }
+
+    @Test(timeout = 300_000)
+    fun `registered flows always come from the node`() {
+        cachingRpcOps.registeredFlows()
+        cachingRpcOps.registeredFlows()
+        verify(rpcOps, times(2)).registeredFlows()
+    }
+
+    @Test(timeout = 300_000)
+    fun `fresh calls go to the node`() {
+        cachingRpcOps.nodeInfo()
+        CachingRPCOps.fresh { cachingRpcOps.nodeInfo() }
+        verify(rpcOps, times(2)).nodeInfo()
+    }
+
+    @Test(timeout = 300_000)
+    fun `network map changes drop what depends on the network map`() {
+        assertSame(nodeInfo, cachingRpcOps.networkMapSnapshot().single())
+        cachingRpcOps.nodeInfo()
+        networkMapUpdates.onNext(NetworkMapCache.MapChange.Added(nodeInfo))
+        cachingRpcOps.nodeInfo()
+        verify(rpcOps, times(2)).nodeInfo()
+        // The snapshot came with the feed.
+        verify(rpcOps, times(0)).networkMapSnapshot()
+    }
+
+    @Test(timeout = 300_000)
+    fun `the network map is followed again once its feed has ended`() {
+        val laterUpdates = PublishSubject.create<NetworkMapCache.MapChange>()
+        whenever(rpcOps.networkMapFeed()).thenReturn(DataFeed(listOf(nodeInfo), networkMapUpdates), DataFeed(listOf(nodeInfo), laterUpdates))
+        cachingRpcOps.networkMapSnapshot()
+        networkMapUpdates.onCompleted()
+        assertSame(nodeInfo, cachingRpcOps.networkMapSnapshot().single())
+        verify(rpcOps, times(2)).networkMapFeed()
+        verify(rpcOps, times(0)).networkMapSnapshot()
+    }
+}
@@ -0,0 +1,65 @@
+package net.corda.tools.shell
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import kotlin.test.assertEquals
+
+class FlowBatchJournalTest {
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
+    @Test(timeout = 300_000)
+    fun `journal remembers processed lines across runs`() {
+        val argumentsFile = tempFolder.newFile("args.txt").toPath()
+        FlowBatchJournal.forArgumentsFile(argumentsFile).use {
+            assertEquals(emptySet(), it.processedLines())
+            it.completed(1, "c7b3bd4e-ae4a-4a3a-9f3c-6e2d8d8d2c31")
+            it.failed(3, null, "No applicable constructor\nfor flow")
+        }
+        val journal = FlowBatchJournal.forArgumentsFile(argumentsFile)
+        assertEquals(setOf(1, 3), journal.processedLines())
+        assertEquals(2, journal.path.toFile().readLines().size)
+    }
+
+    @Test(timeout = 300_000)
+    fun `a failed line that is retried and completes counts as completed`() {
+        val argumentsFile = tempFolder.newFile("args.txt").toPath()
+        FlowBatchJournal.forArgumentsFile(argumentsFile).use {
+            it.failed(2, null, "Connection refused")
+            it.failed(3, null, "No applicable constructor")
+            it.completed(2, "c7b3bd4e-ae4a-4a3a-9f3c-6e2d8d8d2c31")
+        }
+        val journal = FlowBatchJournal.forArgumentsFile(argumentsFile)
+        assertEquals(setOf(2), journal.completedLines())
+        assertEquals(setOf(3), journal.failedLines() - journal.completedLines())
+    }
+
+    @Test(timeout = 300_000)
+    fun `client id prefix and started lines survive a restart`() {
+        val argumentsFile = tempFolder.newFile("args.txt").toPath()
+        val prefix = FlowBatchJournal.forArgumentsFile(argumentsFile).use {
+            it.started(1, "c7b3bd4e-ae4a-4a3a-9f3c-6e2d8d8d2c31", "${it.clientIdPrefix()}-1")
+            it.started(2, "0d1e3a4b-51b6-4c8d-8e0f-7a9b2c3d4e5f", "${it.clientIdPrefix()}-2")
+            it.completed(1, "c7b3bd4e-ae4a-4a3a-9f3c-6e2d8d8d2c31")
+            it.clientIdPrefix()
+        }
+        val journal = FlowBatchJournal.forArgumentsFile(argumentsFile)
+        assertEquals(prefix, journal.clientIdPrefix())
+        assertEquals(setOf(1, 2), journal.startedLines())
+        assertEquals(setOf(1), journal.processedLines())
+    }
+
+    @Test(timeout = 300_000)
+    fun `JSON object lines are unwrapped into flow arguments`() {
+        assertEquals("\"a\": \"Hi\", \"b\": 12", FlowBatchRunner.toFlowArguments(" {\"a\": \"Hi\", \"b\": 12} "))
+        assertEquals("a: Hi, b: 12", FlowBatchRunner.toFlowArguments("a: Hi, b: 12"))
+    }
+
+    @Test(timeout = 300_000)
+    fun `template rows are split on tabs or commas`() {
+        assertEquals(listOf("O=Bank A, L=London, C=GB", "100"), FlowBatchRunner.toColumns("O=Bank A, L=London, C=GB\t100"))
+        assertEquals(listOf("Alice", "100"), FlowBatchRunner.toColumns("Alice, 100"))
+    }
+}
@@ -0,0 +1,73 @@
+package net.corda.tools.shell
+
+import net.corda.core.messaging.CordaRPCOps
+import org.junit.Test
+import java.lang.ref.WeakReference
+import java.lang.reflect.Proxy
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class FlowNameIndexTest {
+    private val flows = mutableListOf(
+        "com.example.flows.IssueFlow",
+        "com.example.flows.IssueFlow\$Initiator",
+        "com.example.flows.TransferFlow",
+        "net.corda.core.flows.ContractUpgradeFlow\$Authorise"
+    )
+    private var calls = 0
+    private val index = FlowNameIndex({ calls++; flows.toList() })
+
+    @Test(timeout = 300_000)
+    fun `unique fragment resolves to its flow`() {
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.TransferFlow"), index.resolve("Transfer"))
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.TransferFlow"), index.resolve("Tr"))
+    }
+
+    @Test(timeout = 300_000)
+    fun `fragment matching the end of a name wins over longer names`() {
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.IssueFlow"), index.resolve("IssueFlow"))
+    }
+
+    @Test(timeout = 300_000)
+    fun `ambiguous fragment lists options shortest first`() {
+        assertEquals(
+            FlowNameIndex.Resolution.Ambiguous(listOf("com.example.flows.IssueFlow", "com.example.flows.IssueFlow\$Initiator")),
+            index.resolve("Issue")
+        )
+    }
+
+    @Test(timeout = 300_000)
+    fun `lookups are served locally once the index is built`() {
+        index.resolve("Transfer")
+        index.resolve("Issue")
+        index.resolve("Authorise")
+        assertEquals(1, calls)
+    }
+
+    @Test(timeout = 300_000)
+    fun `unknown fragment refreshes the index`() {
+        assertEquals(FlowNameIndex.Resolution.NoMatch, index.resolve("Redeem"))
+        flows += "com.example.flows.RedeemFlow"
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.RedeemFlow"), index.resolve("Redeem"))
+        assertEquals(2, calls)
+    }
+
+    @Test(timeout = 300_000)
+    fun `an index does not keep its connection reachable`() {
+        var rpcOps: CordaRPCOps? = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(CordaRPCOps::class.java)) { _, _, _ -> flows.toList() } as CordaRPCOps
+        val index = FlowNameIndex.forRpcOps(rpcOps!!)
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.TransferFlow"), index.resolve("Transfer"))
+
+        val connection = WeakReference(rpcOps)
+        @Suppress("UNUSED_VALUE")
+        rpcOps = null
+        for (attempt in 1..50) {
+            if (connection.get() == null) break
+            System.gc()
+            Thread.sleep(10)
+        }
+        assertNull(connection.get())
+        // Still answers from what it had indexed.
+        assertEquals(FlowNameIndex.Resolution.Match("com.example.flows.TransferFlow"), index.resolve("Transfer"))
+    }
+}
@@ -0,0 +1,114 @@
+package net.corda.tools.shell
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import net.corda.core.flows.StateMachineRunId
+import net.corda.core.internal.concurrent.openFuture
+import net.corda.core.messaging.FlowHandleImpl
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.time.Instant
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class FlowResultSinkTest {
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
+    @Test(timeout = 300_000)
+    fun `outcomes are appended as JSON lines`() {
+        val file = tempFolder.root.toPath().resolve("results.ndjson")
+        val sink = FlowResultSink.forFile(file.toString())
+        val succeeded = openFuture<String>()
+        val failed = openFuture<String>()
+        val succeededId = StateMachineRunId.createRandom()
+        sink.track(FlowHandleImpl(succeededId, succeeded), "com.example.FlowA", Instant.now())
+        sink.track(FlowHandleImpl(StateMachineRunId.createRandom(), failed), "com.example.FlowA", Instant.now())
+        succeeded.set("done")
+        failed.setException(IllegalStateException("Boom"))
+
+        while (!file.toFile().exists() || file.toFile().readLines().size < 2) {
+            Thread.sleep(10)
+        }
+        val records = file.toFile().readLines().map { ObjectMapper().readTree(it) }
+        assertEquals(succeededId.uuid.toString(), records[0]["runId"].asText())
+        assertEquals("com.example.FlowA", records[0]["flowClass"].asText())
+        assertEquals(true, records[0]["success"].asBoolean())
+        assertEquals(false, records[1]["success"].asBoolean())
+        assertEquals("java.lang.IllegalStateException: Boom", records[1]["error"].asText())
+        sink.release(PrintWriter(StringWriter()))
+    }
+
+    @Test(timeout = 300_000)
+    fun `outcomes are appended after what the file already holds`() {
+        val file = tempFolder.root.toPath().resolve("results.ndjson")
+        file.toFile().writeText("{\"runId\":\"earlier\"}\n")
+        val sink = FlowResultSink.forFile(file.toString())
+        val succeeded = openFuture<String>()
+        sink.track(FlowHandleImpl(StateMachineRunId.createRandom(), succeeded), "com.example.FlowA", Instant.now())
+        succeeded.set("done")
+
+        while (file.toFile().readLines().size < 2) {
+            Thread.sleep(10)
+        }
+        val records = file.toFile().readLines().map { ObjectMapper().readTree(it) }
+        assertEquals("earlier", records[0]["runId"].asText())
+        assertEquals(true, records[1]["success"].asBoolean())
+        sink.release(PrintWriter(StringWriter()))
+    }
+
+    @Test(timeout = 300_000)
+    fun `a released sink writes the flows still running and then stops`() {
+        val file = tempFolder.root.toPath().resolve("results.ndjson")
+        val sink = FlowResultSink.forFile(file.toString())
+        assertSame(sink, FlowResultSink.forFile(file.toString()))
+        val running = openFuture<String>()
+        sink.track(FlowHandleImpl(StateMachineRunId.createRandom(), running), "com.example.FlowA", Instant.now())
+        val output = StringWriter()
+        sink.release(PrintWriter(output))
+        sink.release(PrintWriter(output))
+        assertEquals("", output.toString())
+
+        running.set("done")
+        while (!file.toFile().exists() || file.toFile().readLines().isEmpty()) {
+            Thread.sleep(10)
+        }
+        var next = FlowResultSink.forFile(file.toString())
+        while (next === sink) {
+            next.release(PrintWriter(output))
+            Thread.sleep(10)
+            next = FlowResultSink.forFile(file.toString())
+        }
+        next.release(PrintWriter(output))
+        assertNotSame(sink, next)
+        assertEquals(1, file.toFile().readLines().size)
+    }
+
+    @Test(timeout = 300_000)
+    fun `write failures are reported and the records kept`() {
+        val directory = tempFolder.newFolder().toPath()
+        // A directory can't be opened for writing.
+        val file = directory.resolve("results.ndjson").also { it.toFile().mkdir() }
+        val sink = FlowResultSink.forFile(file.toString())
+        val succeeded = openFuture<String>()
+        sink.track(FlowHandleImpl(StateMachineRunId.createRandom(), succeeded), "com.example.FlowA", Instant.now())
+        succeeded.set("done")
+        while (sink.writeFailure == null) {
+            Thread.sleep(10)
+        }
+        file.toFile().delete()
+        val output = StringWriter()
+        sink.release(PrintWriter(output))
+        assertTrue(output.toString().startsWith("Some flow results could not be written to $file"), output.toString())
+
+        while (!file.toFile().isFile || file.toFile().readLines().isEmpty()) {
+            Thread.sleep(10)
+        }
+        assertEquals(true, ObjectMapper().readTree(file.toFile().readLines().single())["success"].asBoolean())
+    }
+}
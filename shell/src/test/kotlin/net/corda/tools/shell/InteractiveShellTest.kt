@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.type.TypeFactory
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory
 import com.nhaarman.mockito_kotlin.any
 import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
 import com.nhaarman.mockito_kotlin.verify
 import com.nhaarman.mockito_kotlin.whenever
 import net.corda.client.jackson.JacksonSupport
@@ -34,11 +35,17 @@ import org.crsh.text.Color
 import org.crsh.text.Decoration
 import org.crsh.text.RenderPrintWriter
 import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import rx.Observable
+import java.nio.file.Files
 import java.util.*
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
 
 class InteractiveShellTest {
     lateinit var inputObjectMapper: ObjectMapper
@@ -46,6 +53,10 @@ class InteractiveShellTest {
     lateinit var invocationContext: InvocationContext<Map<Any, Any>>
     lateinit var printWriter: RenderPrintWriter
 
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
     @Before
     fun setup() {
         inputObjectMapper = objectMapperWithClassLoader(InteractiveShell.getCordappsClassloader())
@@ -201,6 +212,41 @@ class InteractiveShellTest {
         assert(errors.isEmpty()) { errors.joinToString(", ") }
     }
 
+    @Test(timeout = 300_000)
+    fun constructorSignaturesAreCached() {
+        val parser = FlowConstructorCache.parser(FlowA::class.java, om)
+        assertSame(parser, FlowConstructorCache.parser(FlowA::class.java, om))
+        assertSame(FlowConstructorCache.signatures(FlowA::class.java, parser), FlowConstructorCache.signatures(FlowA::class.java, parser))
+    }
+
+    @Test(timeout = 300_000)
+    fun argumentTemplatesFillInPlaceholders() {
+        val template = FlowArgumentTemplate.parse("b: \${i}, c: \"\${column:2}\"", FlowA::class.java, om)
+        assertEquals(listOf<Any?>(7, "second"), template.arguments(FlowArgumentTemplate.Values(7, listOf("first", "second"))).toList())
+        assertEquals(listOf<Any?>(8, "again"), template.arguments(FlowArgumentTemplate.Values(8, listOf("", "again"))).toList())
+    }
+
+    @Test(timeout = 300_000)
+    fun argumentTemplatesOnlyDeserializeStaticParametersOnce() {
+        val template = FlowArgumentTemplate.parse("party: \"${megaCorp.name}\"", FlowA::class.java, om)
+        assertSame(template.arguments(FlowArgumentTemplate.Values(0))[0], template.arguments(FlowArgumentTemplate.Values(1))[0])
+    }
+
+    @Test(timeout = 300_000)
+    fun plainFlowArgumentsAreDeserializedAfreshEveryTime() {
+        val first = InteractiveShell.parseFlowArguments("amount: \"10 USD\"", FlowA::class.java, om)[0]
+        val second = InteractiveShell.parseFlowArguments("amount: \"10 USD\"", FlowA::class.java, om)[0]
+        assertEquals(first, second)
+        assertNotSame(first, second)
+    }
+
+    @Test(timeout = 300_000)
+    fun unknownPlaceholdersAreRejected() {
+        assertFailsWith<IllegalArgumentException> {
+            FlowArgumentTemplate.parse("a: \${nonsense}", FlowA::class.java, om)
+        }
+    }
+
     @Test(timeout = 300_000)
     fun party() = check("party: \"${megaCorp.name}\"", megaCorp.name.toString())
 
@@ -233,6 +279,32 @@ class InteractiveShellTest {
         verify(printWriter).println(NETWORK_MAP_JSON_PAYLOAD.replace("\n", System.lineSeparator()))
     }
 
+    @Test(timeout = 300_000)
+    fun `run does not call the node when the output file already exists`() {
+        val file = tempFolder.newFile("existing.json").toPath()
+        Files.write(file, "previous".toByteArray())
+
+        InteractiveShell.setOutputFormat(InteractiveShell.OutputFormat.JSON)
+        InteractiveShell.runRPCFromString(listOf("nodeInfo"), printWriter, invocationContext, cordaRpcOps, inputObjectMapper,
+                outputFile = file.toString())
+
+        verify(cordaRpcOps, never()).nodeInfo()
+        assertEquals("previous", String(Files.readAllBytes(file)))
+    }
+
+    @Test(timeout = 300_000)
+    fun `run removes the output file and reports no count when the call fails`() {
+        val file = tempFolder.root.toPath().resolve("failed.json")
+        whenever(cordaRpcOps.nodeInfo()).thenThrow(IllegalStateException("node unavailable"))
+
+        InteractiveShell.setOutputFormat(InteractiveShell.OutputFormat.JSON)
+        InteractiveShell.runRPCFromString(listOf("nodeInfo"), printWriter, invocationContext, cordaRpcOps, inputObjectMapper,
+                outputFile = file.toString())
+
+        verify(printWriter, never()).println("Wrote 0 value(s) to $file")
+        assertFalse(Files.exists(file))
+    }
+
     @Test(timeout = 300_000)
     fun killFlowWithNonsenseID() {
         InteractiveShell.killFlowById("nonsense", printWriter, cordaRpcOps, om)
@@ -0,0 +1,41 @@
+package net.corda.tools.shell
+
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class LatencyHistogramTest {
+    @Test(timeout = 300_000)
+    fun `small values are recorded exactly`() {
+        val histogram = LatencyHistogram()
+        (1L..100L).forEach { histogram.record(it) }
+        assertEquals(100, histogram.totalCount)
+        assertEquals(50, histogram.valueAtPercentile(50.0))
+        assertEquals(99, histogram.valueAtPercentile(99.0))
+        assertEquals(100, histogram.maxValue)
+    }
+
+    @Test(timeout = 300_000)
+    fun `large values are reported within the bucket precision`() {
+        val histogram = LatencyHistogram()
+        listOf(1_000L, 123_456L, 9_876_543_210L).forEach { value ->
+            histogram.record(value)
+            val reported = histogram.maxValue
+            assertTrue(reported >= value && reported - value <= value / 64, "$value was reported as $reported")
+        }
+    }
+
+    @Test(timeout = 300_000)
+    fun `snapshots reset the histogram and can be accumulated`() {
+        val interval = LatencyHistogram()
+        val total = LatencyHistogram()
+        interval.record(10)
+        interval.record(20)
+        total.add(interval.snapshotAndReset())
+        assertEquals(0, interval.totalCount)
+        interval.record(30)
+        total.add(interval.snapshotAndReset())
+        assertEquals(3, total.totalCount)
+        assertEquals(30, total.maxValue)
+    }
+}
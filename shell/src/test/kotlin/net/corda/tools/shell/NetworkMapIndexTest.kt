@@ -0,0 +1,96 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import net.corda.core.crypto.generateKeyPair
+import net.corda.core.identity.CordaX500Name
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.messaging.DataFeed
+import net.corda.core.node.NodeInfo
+import net.corda.core.node.services.NetworkMapCache
+import net.corda.core.utilities.NetworkHostAndPort
+import net.corda.testing.core.ALICE_NAME
+import net.corda.testing.core.BOB_NAME
+import net.corda.testing.core.getTestPartyAndCertificate
+import org.junit.Test
+import rx.subjects.PublishSubject
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class NetworkMapIndexTest {
+    private val alice = getTestPartyAndCertificate(ALICE_NAME, generateKeyPair().public)
+    private val bob = getTestPartyAndCertificate(BOB_NAME, generateKeyPair().public)
+    private val charlie = getTestPartyAndCertificate(CordaX500Name("Alice Charlie", "Madrid", "ES"), generateKeyPair().public).party
+    private val aliceNodeInfo = NodeInfo(listOf(NetworkHostAndPort("localhost", 8080)), listOf(alice), 1, 1)
+    private val bobNodeInfo = NodeInfo(listOf(NetworkHostAndPort("localhost", 8081)), listOf(bob), 1, 1)
+
+    private val networkMapUpdates = PublishSubject.create<NetworkMapCache.MapChange>()
+    private val rpcOps = mock<CordaRPCOps>().also {
+        whenever(it.networkMapFeed()).thenReturn(DataFeed(listOf(aliceNodeInfo), networkMapUpdates))
+    }
+    private val cachingRpcOps = CachingRPCOps.wrap(rpcOps)
+    private val resolvingRpcOps = NetworkMapIndex.resolvingParties(cachingRpcOps)
+
+    @Test(timeout = 300_000)
+    fun `parties in the network map are resolved without RPC`() {
+        assertEquals(alice.party, resolvingRpcOps.wellKnownPartyFromX500Name(ALICE_NAME))
+        assertEquals(alice.party, resolvingRpcOps.partyFromKey(alice.owningKey))
+        assertEquals(aliceNodeInfo, resolvingRpcOps.nodeInfoFromParty(alice.party))
+        verify(rpcOps, never()).wellKnownPartyFromX500Name(any())
+        verify(rpcOps, never()).partyFromKey(any())
+        verify(rpcOps, never()).nodeInfoFromParty(any())
+    }
+
+    @Test(timeout = 300_000)
+    fun `the index shares the network map feed of the connection`() {
+        resolvingRpcOps.wellKnownPartyFromX500Name(ALICE_NAME)
+        cachingRpcOps.networkMapSnapshot()
+        networkMapUpdates.onNext(NetworkMapCache.MapChange.Added(bobNodeInfo))
+        assertEquals(bob.party, resolvingRpcOps.wellKnownPartyFromX500Name(BOB_NAME))
+        verify(rpcOps, times(1)).networkMapFeed()
+        verify(rpcOps, never()).networkMapSnapshot()
+    }
+
+    @Test(timeout = 300_000)
+    fun `names matching a single party are left to the node`() {
+        // The node may also know a party by that name that isn't in the network map.
+        whenever(rpcOps.partiesFromName("alice", false)).thenReturn(setOf(alice.party, charlie))
+        assertEquals(setOf(alice.party, charlie), resolvingRpcOps.partiesFromName("alice", false))
+        verify(rpcOps).partiesFromName("alice", false)
+    }
+
+    @Test(timeout = 300_000)
+    fun `names already ambiguous in the network map are not looked up over RPC`() {
+        resolvingRpcOps.wellKnownPartyFromX500Name(ALICE_NAME)
+        networkMapUpdates.onNext(NetworkMapCache.MapChange.Added(bobNodeInfo))
+        assertEquals(setOf(alice.party, bob.party), resolvingRpcOps.partiesFromName("o", false))
+        verify(rpcOps, never()).partiesFromName(any(), any())
+    }
+
+    @Test(timeout = 300_000)
+    fun `connections that are not cached are returned as they are`() {
+        assertSame(rpcOps, NetworkMapIndex.resolvingParties(rpcOps))
+    }
+
+    @Test(timeout = 300_000)
+    fun `the index follows the network map`() {
+        resolvingRpcOps.wellKnownPartyFromX500Name(ALICE_NAME)
+        networkMapUpdates.onNext(NetworkMapCache.MapChange.Added(bobNodeInfo))
+        assertEquals(bob.party, resolvingRpcOps.wellKnownPartyFromX500Name(BOB_NAME))
+        networkMapUpdates.onNext(NetworkMapCache.MapChange.Removed(aliceNodeInfo))
+        assertNull(resolvingRpcOps.wellKnownPartyFromX500Name(ALICE_NAME))
+        verify(rpcOps).wellKnownPartyFromX500Name(ALICE_NAME)
+    }
+
+    @Test(timeout = 300_000)
+    fun `parties the index does not know are looked up over RPC`() {
+        val charlieName = CordaX500Name("Charlie", "Madrid", "ES")
+        assertNull(resolvingRpcOps.wellKnownPartyFromX500Name(charlieName))
+        verify(rpcOps).wellKnownPartyFromX500Name(charlieName)
+    }
+}
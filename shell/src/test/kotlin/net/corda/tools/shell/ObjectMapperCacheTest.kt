@@ -0,0 +1,52 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.mock
+import net.corda.core.messaging.CordaRPCOps
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+
+class ObjectMapperCacheTest {
+    @Test(timeout = 300_000)
+    fun `input mappers are kept per session until the connection is re-established`() {
+        val rpcOps = mock<CordaRPCOps>()
+        val session = ObjectMapperCache.SessionMappers()
+        val mapper = session.inputMapper(rpcOps, null)
+        assertSame(mapper, session.inputMapper(rpcOps, null))
+        assertNotSame(mapper, ObjectMapperCache.SessionMappers().inputMapper(rpcOps, null))
+        assertNotSame(mapper, session.inputMapper(rpcOps, javaClass.classLoader))
+
+        ObjectMapperCache.connectionReestablished()
+        assertNotSame(mapper, session.inputMapper(rpcOps, null))
+    }
+
+    @Test(timeout = 300_000)
+    fun `parsers are kept with their input mapper and dropped with the session`() {
+        val rpcOps = mock<CordaRPCOps>()
+        val session = ObjectMapperCache.SessionMappers()
+        val parser = session.rpcParser(rpcOps, null)
+        assertSame(parser, session.rpcParser(rpcOps, null))
+
+        session.clear()
+        assertNotSame(parser, session.rpcParser(rpcOps, null))
+    }
+
+    @Test(timeout = 300_000)
+    fun `output writers are kept per format`() {
+        val json = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.JSON)
+        assertSame(json, ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.JSON))
+        assertNotSame(json, ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.YAML))
+    }
+
+    @Test(timeout = 300_000)
+    fun `accelerated writers print the same as reflective ones`() {
+        val value = listOf(OutputPrinterTest.Owner("Alice", "k1"), mapOf("b" to 2))
+        for (format in listOf(InteractiveShell.OutputFormat.JSON, InteractiveShell.OutputFormat.YAML)) {
+            assertEquals(
+                ObjectMapperCache.outputWriter(format, accelerated = false).writeValueAsString(value),
+                ObjectMapperCache.outputWriter(format, accelerated = true).writeValueAsString(value)
+            )
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.mock
+import net.corda.core.contracts.StateAndRef
+import net.corda.core.contracts.StateRef
+import net.corda.core.contracts.TransactionState
+import net.corda.core.crypto.SecureHash
+import net.corda.core.node.services.Vault
+import net.corda.testing.core.DUMMY_NOTARY_NAME
+import net.corda.testing.core.TestIdentity
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.file.FileAlreadyExistsException
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class OutputFilePrinterTest {
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
+    @Test(timeout = 300_000)
+    fun `binary files can be decoded back into text`() {
+        for (format in listOf(InteractiveShell.OutputFormat.CBOR, InteractiveShell.OutputFormat.SMILE)) {
+            val file = tempFolder.root.toPath().resolve("result.${format.name.toLowerCase()}")
+            OutputFilePrinter(file, format).use {
+                it.printSnapshot(listOf(mapOf("a" to 1)), mock())
+                it.printObservation(1, mapOf("b" to "two"), mock())
+                assertEquals(2, it.finish())
+            }
+
+            val text = StringWriter()
+            val count = OutputFilePrinter.decode(file, OutputPrinter.forFormat(InteractiveShell.OutputFormat.NDJSON), PrintWriter(text))
+            assertEquals(2, count)
+            assertEquals(listOf("{\"a\":1}", "{\"b\":\"two\"}"), text.toString().lines().filter { it.isNotEmpty() })
+        }
+    }
+
+    @Test(timeout = 300_000)
+    fun `ndjson files get one line per element`() {
+        val file = tempFolder.root.toPath().resolve("result.ndjson")
+        OutputFilePrinter(file, InteractiveShell.OutputFormat.NDJSON).use {
+            it.print(listOf(1, 2), mock())
+            it.printObservation(1, listOf(3), mock())
+        }
+        assertEquals(listOf("1", "2", "[3]"), file.toFile().readLines())
+    }
+
+    @Test(timeout = 300_000)
+    fun `ndjson files get one line per state of a vault page`() {
+        val notary = TestIdentity(DUMMY_NOTARY_NAME).party
+        val states = (1..3).map {
+            StateAndRef(TransactionState(VaultQueryStreamerTest.Note(it), "com.example.NoteContract", notary), StateRef(SecureHash.randomSHA256(), 0))
+        }
+        val page = Vault.Page(states, emptyList(), states.size.toLong(), Vault.StateStatus.UNCONSUMED, emptyList())
+        val file = tempFolder.root.toPath().resolve("page.ndjson")
+        OutputFilePrinter(file, InteractiveShell.OutputFormat.NDJSON).use {
+            it.print(page, mock())
+            assertEquals(3, it.finish())
+        }
+        val writer = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.NDJSON)
+        assertEquals(states.map { writer.writeValueAsString(it) }, file.toFile().readLines())
+    }
+
+    @Test(timeout = 300_000)
+    fun `existing files are not overwritten`() {
+        for (format in listOf(InteractiveShell.OutputFormat.JSON, InteractiveShell.OutputFormat.CSV)) {
+            val file = tempFolder.newFile().toPath()
+            file.toFile().writeText("keep me")
+            assertFailsWith<FileAlreadyExistsException> { OutputFilePrinter(file, format) }
+            assertEquals("keep me", file.toFile().readText())
+        }
+    }
+}
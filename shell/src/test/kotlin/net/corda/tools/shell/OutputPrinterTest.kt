@@ -0,0 +1,110 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.verifyNoMoreInteractions
+import net.corda.core.contracts.StateAndRef
+import net.corda.core.contracts.StateRef
+import net.corda.core.contracts.TransactionState
+import net.corda.core.crypto.SecureHash
+import net.corda.core.node.services.Vault
+import net.corda.testing.core.DUMMY_NOTARY_NAME
+import net.corda.testing.core.TestIdentity
+import org.junit.Test
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+
+class OutputPrinterTest {
+    private val writer = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.JSON)
+
+    @Test(timeout = 300_000)
+    fun `small values are printed in one go`() {
+        val out = mock<PrintWriter>()
+        OutputPrinter(writer).print(listOf("a", "b"), out, "Observation 1: ")
+        verify(out).println("Observation 1: " + writer.writeValueAsString(listOf("a", "b")))
+        verifyNoMoreInteractions(out)
+    }
+
+    @Test(timeout = 300_000)
+    fun `large values are passed on in chunks with the same text`() {
+        val value = (1..20_000).map { "element $it" }
+        val text = StringWriter()
+        val target = ChunkedLineWriter(PrintWriter(text), chunkSize = 1024)
+        writer.writeValue(target, value)
+        target.finish()
+        assertEquals(writer.writeValueAsString(value) + System.lineSeparator(), text.toString())
+    }
+
+    @Test(timeout = 300_000)
+    fun `snapshots are printed an element at a time with the same text`() {
+        val snapshot = listOf(mapOf("a" to 1), mapOf("b" to listOf(2, 3)))
+        val text = StringWriter()
+        OutputPrinter(writer).printSnapshot(snapshot, PrintWriter(text))
+        val separator = System.lineSeparator()
+        assertEquals("Snapshot:$separator${writer.writeValueAsString(snapshot)}${separator}Updates:$separator", text.toString())
+    }
+
+    @Test(timeout = 300_000)
+    fun `ndjson prints every element and update as one compact line`() {
+        val out = mock<PrintWriter>()
+        val printer = OutputPrinter.forFormat(InteractiveShell.OutputFormat.NDJSON)
+        printer.printSnapshot(listOf(mapOf("a" to 1), mapOf("b" to listOf(2, 3))), out)
+        printer.printObservation(1, listOf("c"), out)
+        printer.printCompleted(out)
+        verify(out).println("{\"a\":1}")
+        verify(out).println("{\"b\":[2,3]}")
+        verify(out).println("[\"c\"]")
+        verify(out).flush()
+        verifyNoMoreInteractions(out)
+    }
+
+    private fun vaultPage(states: Int): Vault.Page<VaultQueryStreamerTest.Note> {
+        val notary = TestIdentity(DUMMY_NOTARY_NAME).party
+        val page = (1..states).map {
+            StateAndRef(TransactionState(VaultQueryStreamerTest.Note(it), "com.example.NoteContract", notary), StateRef(SecureHash.randomSHA256(), 0))
+        }
+        return Vault.Page(page, emptyList(), states.toLong(), Vault.StateStatus.UNCONSUMED, emptyList())
+    }
+
+    @Test(timeout = 300_000)
+    fun `vault page snapshots are printed as the whole page would be`() {
+        val page = vaultPage(3)
+        for (format in listOf(InteractiveShell.OutputFormat.JSON, InteractiveShell.OutputFormat.YAML)) {
+            for (accelerated in listOf(false, true)) {
+                val writer = ObjectMapperCache.outputWriter(format, accelerated = accelerated)
+                val text = StringWriter()
+                OutputPrinter(writer).printSnapshot(page, PrintWriter(text))
+                val separator = System.lineSeparator()
+                assertEquals("Snapshot:$separator${writer.writeValueAsString(page)}${separator}Updates:$separator", text.toString())
+            }
+        }
+    }
+
+    @Test(timeout = 300_000)
+    fun `ndjson prints every state of a vault page snapshot as one line`() {
+        val page = vaultPage(3)
+        val out = mock<PrintWriter>()
+        val ndjson = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.NDJSON)
+        OutputPrinter.forFormat(InteractiveShell.OutputFormat.NDJSON).printSnapshot(page, out)
+        page.states.forEach { verify(out).println(ndjson.writeValueAsString(it)) }
+        verify(out).flush()
+        verifyNoMoreInteractions(out)
+    }
+
+    class Holding(val ref: String, val owner: Owner) {
+        val history: List<String> get() = throw IllegalStateException("Should not have been serialized")
+    }
+
+    class Owner(val name: String, val key: String)
+
+    @Test(timeout = 300_000)
+    fun `only the projected fields are serialized`() {
+        val out = mock<PrintWriter>()
+        val printer = OutputPrinter.forFormat(InteractiveShell.OutputFormat.NDJSON, fields = listOf("ref", "owner.name"))
+        printer.print(listOf(Holding("1", Owner("Alice", "k1")), Holding("2", Owner("Bob", "k2"))), out)
+        verify(out).println("{\"ref\":\"1\",\"owner\":{\"name\":\"Alice\"}}")
+        verify(out).println("{\"ref\":\"2\",\"owner\":{\"name\":\"Bob\"}}")
+        verifyNoMoreInteractions(out)
+    }
+}
@@ -0,0 +1,49 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.atLeastOnce
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import net.corda.core.internal.concurrent.openFuture
+import org.crsh.command.InvocationContext
+import org.crsh.text.RenderPrintWriter
+import org.junit.Test
+import java.io.PrintWriter
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class PagerTest {
+    @Test(timeout = 300_000)
+    fun `updates written by other threads never wait for the operator`() {
+        val quit = CountDownLatch(1)
+        val context = mock<InvocationContext<Any>>()
+        whenever(context.height).thenReturn(10)
+        whenever(context.width).thenReturn(80)
+        whenever(context.readLine(any(), any())).thenAnswer {
+            quit.await()
+            "q"
+        }
+        val out = mock<RenderPrintWriter>()
+        val updatesWriter = CompletableFuture<PrintWriter>()
+        val done = openFuture<Unit>()
+        val pager = thread {
+            Pager(context, out).follow { target, updates ->
+                target.println("Snapshot:")
+                updatesWriter.complete(updates)
+                done
+            }
+        }
+
+        // Far more than the pager renders ahead of the screen, which would block if it was written to it directly.
+        val updates = updatesWriter.get()
+        (1..5 * Pager.LOOK_AHEAD).forEach { updates.println("Update $it") }
+        done.set(Unit)
+        quit.countDown()
+        pager.join()
+
+        verify(out).println("Snapshot:")
+        verify(out, atLeastOnce()).println("Update 1")
+    }
+}
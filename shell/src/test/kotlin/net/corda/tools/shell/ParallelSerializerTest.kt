@@ -0,0 +1,47 @@
+package net.corda.tools.shell
+
+import net.corda.core.contracts.StateAndRef
+import net.corda.core.contracts.StateRef
+import net.corda.core.contracts.TransactionState
+import net.corda.core.crypto.SecureHash
+import net.corda.core.node.services.Vault
+import net.corda.testing.core.DUMMY_NOTARY_NAME
+import net.corda.testing.core.TestIdentity
+import org.junit.Test
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+
+class ParallelSerializerTest {
+    data class Element(val index: Int, val name: String, val tags: List<String>, val attributes: Map<String, Any?>)
+
+    @Test(timeout = 300_000)
+    fun `parallel output is the same as sequential output`() {
+        val elements = (1..5_000).map { Element(it, "element $it", listOf("a", "b$it"), mapOf("x" to it * 0.5, "y" to null)) }
+        for (format in listOf(InteractiveShell.OutputFormat.JSON, InteractiveShell.OutputFormat.YAML)) {
+            val writer = ObjectMapperCache.outputWriter(format)
+            val sequential = StringWriter()
+            OutputPrinter(writer).print(elements, PrintWriter(sequential))
+            val parallel = StringWriter()
+            OutputPrinter(writer, parallel = true).print(elements, PrintWriter(parallel))
+            assertEquals(sequential.toString(), parallel.toString(), "$format output differs")
+        }
+    }
+
+    @Test(timeout = 300_000)
+    fun `projected states of a vault page keep their fields`() {
+        val notary = TestIdentity(DUMMY_NOTARY_NAME).party
+        val states = (1..2 * ParallelSerializer.MIN_ELEMENTS).map {
+            StateAndRef(TransactionState(VaultQueryStreamerTest.Note(it), "com.example.NoteContract", notary), StateRef(SecureHash.randomSHA256(), 0))
+        }
+        val page = Vault.Page(states, emptyList(), states.size.toLong(), Vault.StateStatus.UNCONSUMED, emptyList())
+        val writer = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.JSON, listOf("states.ref"))
+        val sequential = StringWriter()
+        OutputPrinter(writer).printSnapshot(page, PrintWriter(sequential))
+        val parallel = StringWriter()
+        OutputPrinter(writer, parallel = true).printSnapshot(page, PrintWriter(parallel))
+        assertEquals(sequential.toString(), parallel.toString())
+        assertFalse("{}" in parallel.toString())
+    }
+}
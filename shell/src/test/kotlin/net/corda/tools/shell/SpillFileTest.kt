@@ -0,0 +1,18 @@
+package net.corda.tools.shell
+
+import org.junit.Test
+import kotlin.test.assertEquals
+
+class SpillFileTest {
+    @Test(timeout = 300_000)
+    fun `lines are read back across segment boundaries`() {
+        val lines = (1..500).map { "line $it " + "é".repeat(it % 37) }
+        SpillFile(segmentSize = 64).use { spill ->
+            lines.forEach { spill.append(it) }
+            spill.append("")
+            assertEquals(501, spill.lines)
+            assertEquals(lines, (0 until 500).map { spill.line(it) })
+            assertEquals("", spill.line(500))
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.corda.tools.shell
+
+import org.junit.Test
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+
+class TabularPrinterTest {
+    data class Amount(val quantity: Long, val token: String)
+    data class Holding(val owner: String, val amount: Amount, val tags: List<String>)
+    class Expensive(val id: Int) {
+        val details: String get() = throw IllegalStateException("Should not have been serialized")
+    }
+
+    private fun print(format: InteractiveShell.OutputFormat, columns: List<String>?, vararg values: Any?): List<String> {
+        val text = StringWriter()
+        val out = PrintWriter(text)
+        val printer = OutputPrinter.forFormat(format, columns)
+        values.forEachIndexed { index, value -> if (index == 0) printer.printSnapshot(value, out) else printer.printObservation(index, value, out) }
+        return text.toString().lines().dropLast(1)
+    }
+
+    @Test(timeout = 300_000)
+    fun `the header is inferred from the first page`() {
+        val lines = print(
+            InteractiveShell.OutputFormat.CSV,
+            null,
+            listOf(Holding("Alice, Ltd", Amount(10, "GBP"), listOf("a")), Holding("Bob", Amount(20, "USD"), listOf("b", "c"))),
+            Holding("Charlie \"C\"", Amount(30, "EUR"), emptyList())
+        )
+        assertEquals(listOf(
+            "owner,amount.quantity,amount.token,tags.0,tags.1",
+            "\"Alice, Ltd\",10,GBP,a,",
+            "Bob,20,USD,b,c",
+            "\"Charlie \"\"C\"\"\",30,EUR,,"
+        ), lines)
+    }
+
+    @Test(timeout = 300_000)
+    fun `explicit columns skip everything else`() {
+        val lines = print(InteractiveShell.OutputFormat.TSV, listOf("id"), listOf(Expensive(1), Expensive(2)))
+        assertEquals(listOf("id", "1", "2"), lines)
+    }
+
+    @Test(timeout = 300_000)
+    fun `columns can address whole subtrees`() {
+        val lines = print(InteractiveShell.OutputFormat.TSV, listOf("owner", "amount"), listOf(Holding("Alice\tA", Amount(10, "GBP"), emptyList())))
+        assertEquals(listOf("owner\tamount", "Alice\\tA\t{\"quantity\":10,\"token\":\"GBP\"}"), lines)
+    }
+}
@@ -0,0 +1,52 @@
+package net.corda.tools.shell
+
+import net.corda.core.crypto.SecureHash
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+
+class VaultExporterTest {
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
+    private val writer = ObjectMapperCache.outputWriter(InteractiveShell.OutputFormat.NDJSON)
+
+    @Test(timeout = 300_000)
+    fun `states are written one per line to a gzip file with its checksum`() {
+        val file = tempFolder.root.toPath().resolve("states.ndjson.gz")
+        val checksum = VaultExporter(file, writer, bufferSize = 64).use { exporter ->
+            exporter.export(listOf(mapOf("a" to 1), mapOf("b" to "two")))
+            exporter.export((1..1000).toList())
+            assertEquals(1002L, exporter.finish())
+            exporter.checksum
+        }
+
+        val lines = GZIPInputStream(Files.newInputStream(file)).bufferedReader().readLines()
+        assertEquals(listOf("{\"a\":1}", "{\"b\":\"two\"}") + (1..1000).map { it.toString() }, lines)
+        assertEquals(SecureHash.sha256(Files.readAllBytes(file)).toString().toLowerCase(), checksum)
+    }
+
+    @Test(timeout = 300_000)
+    fun `an abandoned export is deleted`() {
+        val file = tempFolder.root.toPath().resolve("states.ndjson.gz")
+        VaultExporter(file, writer).use { exporter ->
+            exporter.export(listOf(1, 2, 3))
+        }
+        assertFalse(Files.exists(file))
+    }
+
+    @Test(timeout = 300_000)
+    fun `an existing file is neither overwritten nor deleted`() {
+        val file = tempFolder.newFile("states.ndjson.gz").toPath()
+        file.toFile().writeText("keep me")
+        assertFailsWith<FileAlreadyExistsException> { VaultExporter(file, writer) }
+        assertEquals("keep me", file.toFile().readText())
+    }
+}
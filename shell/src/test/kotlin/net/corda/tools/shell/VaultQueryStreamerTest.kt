@@ -0,0 +1,98 @@
+package net.corda.tools.shell
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import net.corda.core.contracts.ContractState
+import net.corda.core.contracts.StateAndRef
+import net.corda.core.contracts.StateRef
+import net.corda.core.contracts.TransactionState
+import net.corda.core.crypto.SecureHash
+import net.corda.core.identity.AbstractParty
+import net.corda.core.messaging.CordaRPCOps
+import net.corda.core.node.services.Vault
+import net.corda.core.node.services.vault.PageSpecification
+import net.corda.core.node.services.vault.QueryCriteria
+import net.corda.testing.core.DUMMY_NOTARY_NAME
+import net.corda.testing.core.TestIdentity
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import kotlin.test.assertEquals
+
+class VaultQueryStreamerTest {
+    data class Note(val index: Int) : ContractState {
+        override val participants: List<AbstractParty> get() = emptyList()
+    }
+
+    private val notary = TestIdentity(DUMMY_NOTARY_NAME).party
+
+    private fun rpcOpsWith(total: Int, requested: MutableList<Int> = mutableListOf(), onRequest: (Int) -> Unit = {}): CordaRPCOps {
+        val states = (1..total).map {
+            StateAndRef(TransactionState(Note(it), "com.example.NoteContract", notary), StateRef(SecureHash.randomSHA256(), 0))
+        }
+        val rpcOps = mock<CordaRPCOps>()
+        whenever(rpcOps.vaultQueryBy<ContractState>(any(), any(), any(), any())).thenAnswer {
+            val paging = it.getArgument<PageSpecification>(1)
+            synchronized(requested) { requested += paging.pageNumber }
+            onRequest(paging.pageNumber)
+            val from = minOf((paging.pageNumber - 1) * paging.pageSize, total)
+            val page = states.subList(from, minOf(from + paging.pageSize, total))
+            Vault.Page(page, emptyList(), total.toLong(), Vault.StateStatus.UNCONSUMED, emptyList())
+        }
+        return rpcOps
+    }
+
+    @Test(timeout = 300_000)
+    fun `all the states are handed over a page at a time, in order`() {
+        val pages = mutableListOf<List<Int>>()
+        val count = VaultQueryStreamer(rpcOpsWith(25), Note::class.java, QueryCriteria.VaultQueryCriteria(), pageSize = 10).run { page ->
+            pages += page.states.map { (it.state.data as Note).index }
+        }
+        assertEquals(25L, count)
+        assertEquals(listOf((1..10).toList(), (11..20).toList(), (21..25).toList()), pages)
+    }
+
+    @Test(timeout = 300_000)
+    fun `a last full page is not followed by an empty one`() {
+        var pages = 0
+        val count = VaultQueryStreamer(rpcOpsWith(20), Note::class.java, QueryCriteria.VaultQueryCriteria(), pageSize = 10).run { pages++ }
+        assertEquals(20L, count)
+        assertEquals(2, pages)
+    }
+
+    @Test(timeout = 300_000)
+    fun `the next pages are requested while a page is consumed`() {
+        val requested = mutableListOf<Int>()
+        val requestedWhileConsuming = mutableListOf<List<Int>>()
+        val prefetched = CountDownLatch(2)
+        val rpcOps = rpcOpsWith(50, requested) { if (it > 1) prefetched.countDown() }
+        VaultQueryStreamer(rpcOps, Note::class.java, QueryCriteria.VaultQueryCriteria(), pageSize = 10, prefetch = 2).run {
+            // Wait for the fetcher to request what it's allowed to while the first page is consumed.
+            if (requestedWhileConsuming.isEmpty()) prefetched.await()
+            requestedWhileConsuming += synchronized(requested) { requested.toList() }
+        }
+        assertEquals(listOf(1, 2, 3), requestedWhileConsuming.first())
+        assertEquals((1..5).toList(), requested)
+    }
+
+    @Test(timeout = 300_000)
+    fun `without prefetching the pages are requested one at a time`() {
+        val requested = mutableListOf<Int>()
+        val requestedWhileConsuming = mutableListOf<Int>()
+        VaultQueryStreamer(rpcOpsWith(30, requested), Note::class.java, QueryCriteria.VaultQueryCriteria(), pageSize = 10, prefetch = 0).run {
+            requestedWhileConsuming += synchronized(requested) { requested.size }
+        }
+        assertEquals(listOf(1, 2, 3), requestedWhileConsuming)
+    }
+
+    @Test(timeout = 300_000)
+    fun `pages larger than the prefetch bound are not prefetched`() {
+        val requested = mutableListOf<Int>()
+        val requestedWhileConsuming = mutableListOf<Int>()
+        val pageSize = VaultQueryStreamer.MAX_PREFETCHED_STATES + 1
+        VaultQueryStreamer(rpcOpsWith(2 * pageSize, requested), Note::class.java, QueryCriteria.VaultQueryCriteria(), pageSize = pageSize).run {
+            requestedWhileConsuming += synchronized(requested) { requested.size }
+        }
+        assertEquals(listOf(1, 2), requestedWhileConsuming)
+    }
+}
@@ -0,0 +1,63 @@
+package net.corda.tools.shell.utilities
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.verify
+import net.corda.core.flows.StateMachineRunId
+import net.corda.core.internal.concurrent.OpenFuture
+import net.corda.core.internal.concurrent.openFuture
+import net.corda.core.messaging.FlowProgressHandleImpl
+import net.corda.tools.shell.utlities.MultiFlowProgressRenderer
+import org.crsh.text.RenderPrintWriter
+import org.junit.Test
+import org.mockito.Mockito.timeout
+import rx.Observable
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class MultiFlowProgressRendererTest {
+    private val renderer = MultiFlowProgressRenderer()
+
+    private fun track(): OpenFuture<String> {
+        val returnValue = openFuture<String>()
+        renderer.track(FlowProgressHandleImpl(StateMachineRunId.createRandom(), returnValue, Observable.empty()), "com.example.TestFlow")
+        return returnValue
+    }
+
+    @Test(timeout = 300_000)
+    fun `finished flows are forgotten once they have been rendered`() {
+        track().set("done")
+        assertFalse(renderer.isEmpty())
+
+        renderer.render(mock())
+
+        assertTrue(renderer.isEmpty())
+    }
+
+    @Test(timeout = 300_000)
+    fun `flows that finish after rendering stopped are kept until they are rendered`() {
+        val returnValue = track()
+        val out = mock<RenderPrintWriter>()
+        val monitor = thread { renderer.render(out) }
+        verify(out, timeout(10_000)).print(any<Any>())
+        monitor.interrupt()
+        monitor.join()
+        returnValue.set("done")
+
+        assertEquals(1, renderer.size())
+        renderer.render(mock())
+        assertTrue(renderer.isEmpty())
+    }
+
+    @Test(timeout = 300_000)
+    fun `only the latest finished flows are kept when they are never rendered`() {
+        repeat(MultiFlowProgressRenderer.MAX_FINISHED_FLOWS + 10) { track().set("done") }
+        val running = track()
+
+        assertEquals(MultiFlowProgressRenderer.MAX_FINISHED_FLOWS + 1, renderer.size())
+        running.set("done")
+        assertEquals(MultiFlowProgressRenderer.MAX_FINISHED_FLOWS, renderer.size())
+    }
+}